@@ -2,7 +2,9 @@ package au.wildie.m68k;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
 import au.wildie.m68k.cromixfs.disk.floppy.FileScan;
+import au.wildie.m68k.cromixfs.disk.floppy.HFEFloppyImage;
 import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import au.wildie.m68k.cromixfs.disk.st.CromixStDisk;
 import au.wildie.m68k.cromixfs.disk.st.STDiskException;
 import au.wildie.m68k.cromixfs.disk.vfd.InvalidVFDImageException;
 import au.wildie.m68k.cromixfs.disk.vfd.VFDConverter;
@@ -10,6 +12,7 @@ import au.wildie.m68k.cromixfs.disk.vfd.VFDErrorsException;
 import au.wildie.m68k.cromixfs.fs.FileSystem;
 import au.wildie.m68k.cromixfs.fs.FileSystemOps;
 import au.wildie.m68k.cromixfs.fs.FileSystems;
+import au.wildie.m68k.cromixfs.fs.cromix.CheckException;
 import au.wildie.m68k.cromixfs.fs.cromix.CromixFileSystem;
 import au.wildie.m68k.cromixfs.ftar.CromixFtar;
 import org.apache.commons.io.FilenameUtils;
@@ -56,6 +59,17 @@ public class App {
                 ((CromixFileSystem)fs).check(System.out);
             }
             return;
+        } else if (args.length == 3 && args[0].equalsIgnoreCase("-c")) {
+            // Check filesystem, keeping the results to speed up the next check
+            if (!new File(args[1]).exists()) {
+                System.out.printf("Cannot open image file %s\n", args[1]);
+                return;
+            }
+            FileSystemOps fs = get(args[1]);
+            if (fs instanceof CromixFileSystem) {
+                ((CromixFileSystem)fs).check(System.out, new File(args[2]));
+            }
+            return;
         } else if (args.length == 4 && args[0].equalsIgnoreCase("-c") && args[1].equalsIgnoreCase("-p")) {
             // Check filesystem
             if (!new File(args[3]).exists()) {
@@ -156,9 +170,27 @@ public class App {
             }
 
             ((CromixFileSystem)fs).append(path, System.out);
-            try (FileOutputStream archive = new FileOutputStream(args[1])) {
-                ((CromixFileSystem)fs).persist(archive);
+            save((CromixFileSystem)fs, args[1]);
+            return;
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("-compact")) {
+            // Compact an existing Cromix file system in place
+            if (!new File(args[1]).exists()) {
+                System.out.printf("Cannot open image file %s\n", args[1]);
+                return;
             }
+            FileSystemOps fs = get(args[1]);
+            if (!(fs instanceof CromixFileSystem)) {
+                System.out.println("Not a Cromix filesystem");
+                return;
+            }
+
+            try {
+                ((CromixFileSystem)fs).compact(System.out);
+            } catch (CheckException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+            save((CromixFileSystem)fs, args[1]);
             return;
         } else if ((args.length == 2 || args.length == 3) && (args[0].equalsIgnoreCase("-ml") || args[0].equalsIgnoreCase("-ms"))) {
             if (args.length == 3 && !new File(args[2]).exists()) {
@@ -208,6 +240,22 @@ public class App {
         showUsage();
     }
 
+    private static void save(CromixFileSystem fs, String filename) throws IOException {
+        if (fs.getDisk() instanceof CromixStDisk) {
+            // Hard disk images are updated in place, only the modified blocks are written
+            ((CromixStDisk)fs.getDisk()).flush();
+            return;
+        }
+        if (fs.getDisk() instanceof HFEFloppyImage) {
+            // As are HFE images, only the blocks holding modified sectors are written
+            ((HFEFloppyImage)fs.getDisk()).persist(new File(filename));
+            return;
+        }
+        try (FileOutputStream archive = new FileOutputStream(filename)) {
+            fs.persist(archive);
+        }
+    }
+
     private static FileSystemOps get(String filename) throws IOException, InvalidVFDImageException, STDiskException {
         return get(filename, null);
     }
@@ -234,6 +282,9 @@ public class App {
         System.out.print("\nCheck a cromix image:\n");
         System.out.printf("  java -jar %s -c [-p partitionIndex] file.imd|file.img\n", jarName);
 
+        System.out.print("\nCheck a cromix image, reusing and saving the results of the unchanged inode blocks:\n");
+        System.out.printf("  java -jar %s -c file.imd|file.img results\n", jarName);
+
         System.out.print("\nDump cromix inodes:\n");
         System.out.printf("  java -jar %s -di file.imd\n", jarName);
 
@@ -249,6 +300,9 @@ public class App {
         System.out.print("\nAppend file(s) to an existing mountable Cromix image:\n");
         System.out.printf("  java -jar %s -a file.imd path\n", jarName);
 
+        System.out.print("\nCompact an existing mountable Cromix image, moving the files into one run and rebuilding the free list:\n");
+        System.out.printf("  java -jar %s -compact file.imd\n", jarName);
+
         System.out.print("\nCreate a large (8\") mountable Cromix image containing files from path:\n");
         System.out.printf("  java -jar %s -ml file.imd path\n", jarName);
 
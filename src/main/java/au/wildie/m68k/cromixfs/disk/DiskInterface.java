@@ -8,6 +8,18 @@ public interface DiskInterface extends DiskInfo {
     byte[] getSuperBlock() throws IOException;
     void flushSuperBlock(byte[] data);
     byte[] getBlock(int blockNumber) throws IOException;
+
+    /**
+     * Store a block's data. Blocks are normally updated by changing the array returned by getBlock and
+     * passing it back here, this copies the data into that array when it is a different one. Disks that
+     * do not hold every block in memory rely on this to know which blocks have changed.
+     */
+    default void writeBlock(int blockNumber, byte[] data) throws IOException {
+        byte[] block = getBlock(blockNumber);
+        if (block != data) {
+            System.arraycopy(data, 0, block, 0, Math.min(data.length, block.length));
+        }
+    }
     void writeImage(File file, boolean interleaved) throws IOException;
 
     void persist(OutputStream archive) throws IOException;
@@ -0,0 +1,67 @@
+package au.wildie.m68k.cromixfs.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serialises access to a disk so it can be shared by threads. The block arrays that are handed out are not guarded,
+ * concurrent readers must not change them.
+ */
+public class SynchronizedDisk implements DiskInterface {
+    private final DiskInterface disk;
+
+    public SynchronizedDisk(DiskInterface disk) {
+        this.disk = disk;
+    }
+
+    @Override
+    public synchronized byte[] getSuperBlock() throws IOException {
+        return disk.getSuperBlock();
+    }
+
+    @Override
+    public synchronized void flushSuperBlock(byte[] data) {
+        disk.flushSuperBlock(data);
+    }
+
+    @Override
+    public synchronized byte[] getBlock(int blockNumber) throws IOException {
+        return disk.getBlock(blockNumber);
+    }
+
+    @Override
+    public synchronized void writeBlock(int blockNumber, byte[] data) throws IOException {
+        disk.writeBlock(blockNumber, data);
+    }
+
+    @Override
+    public synchronized void writeImage(File file, boolean interleaved) throws IOException {
+        disk.writeImage(file, interleaved);
+    }
+
+    @Override
+    public synchronized void persist(OutputStream archive) throws IOException {
+        disk.persist(archive);
+    }
+
+    @Override
+    public synchronized String getFormatLabel() {
+        return disk.getFormatLabel();
+    }
+
+    @Override
+    public synchronized Integer getTrackCount() {
+        return disk.getTrackCount();
+    }
+
+    @Override
+    public synchronized Integer getTrackCount(int head) {
+        return disk.getTrackCount(head);
+    }
+
+    @Override
+    public synchronized Integer getSectorErrorCount() {
+        return disk.getSectorErrorCount();
+    }
+}
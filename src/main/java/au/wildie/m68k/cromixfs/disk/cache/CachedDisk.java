@@ -0,0 +1,164 @@
+package au.wildie.m68k.cromixfs.disk.cache;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.imd.ImageException;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static au.wildie.m68k.cromixfs.disk.imd.ImageException.CODE_ERROR;
+
+/**
+ * Keeps recently used blocks of any disk so repeated lookups don't go back through the disk format's
+ * cylinder, head, sector and interleave mapping. Blocks that have been passed to writeBlock are written
+ * back to the disk when they are evicted and before the disk is written out, blocks that were only read
+ * are simply dropped.
+ */
+@Getter
+public class CachedDisk implements DiskInterface {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final DiskInterface disk;
+    private final int capacity;
+    private final EvictionPolicy policy;
+    @Getter(AccessLevel.NONE)
+    private final Map<Integer, byte[]> blocks = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Set<Integer> dirty = new HashSet<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public static CachedDisk lru(DiskInterface disk, int capacity) {
+        return new CachedDisk(disk, capacity, new LRUEvictionPolicy());
+    }
+
+    public static CachedDisk clock(DiskInterface disk, int capacity) {
+        return new CachedDisk(disk, capacity, new ClockEvictionPolicy(capacity));
+    }
+
+    public CachedDisk(DiskInterface disk) {
+        this(disk, DEFAULT_CAPACITY, new LRUEvictionPolicy());
+    }
+
+    public CachedDisk(DiskInterface disk, int capacity, EvictionPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Cache capacity must be at least 1, not %d", capacity));
+        }
+        this.disk = disk;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    @Override
+    public byte[] getBlock(int blockNumber) throws IOException {
+        byte[] data = blocks.get(blockNumber);
+        if (data != null) {
+            hits++;
+            policy.accessed(blockNumber);
+            return data;
+        }
+
+        misses++;
+        data = disk.getBlock(blockNumber);
+        if (blocks.size() >= capacity) {
+            evict();
+        }
+        blocks.put(blockNumber, data);
+        policy.added(blockNumber);
+        return data;
+    }
+
+    @Override
+    public void writeBlock(int blockNumber, byte[] data) throws IOException {
+        byte[] block = getBlock(blockNumber);
+        if (block != data) {
+            System.arraycopy(data, 0, block, 0, Math.min(data.length, block.length));
+        }
+        dirty.add(blockNumber);
+    }
+
+    /**
+     * Write the changed blocks back to the disk and empty the cache.
+     */
+    public void flush() throws IOException {
+        for (Map.Entry<Integer, byte[]> entry : blocks.entrySet()) {
+            if (dirty.contains(entry.getKey())) {
+                disk.writeBlock(entry.getKey(), entry.getValue());
+            }
+            policy.removed(entry.getKey());
+        }
+        blocks.clear();
+        dirty.clear();
+    }
+
+    public double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public byte[] getSuperBlock() throws IOException {
+        return disk.getSuperBlock();
+    }
+
+    @Override
+    public void flushSuperBlock(byte[] data) {
+        // The super block may share a cached block
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new ImageException(CODE_ERROR, "Can't write cached blocks", e);
+        }
+        disk.flushSuperBlock(data);
+    }
+
+    @Override
+    public void writeImage(File file, boolean interleaved) throws IOException {
+        flush();
+        disk.writeImage(file, interleaved);
+    }
+
+    @Override
+    public void persist(OutputStream archive) throws IOException {
+        flush();
+        disk.persist(archive);
+    }
+
+    @Override
+    public String getFormatLabel() {
+        return disk.getFormatLabel();
+    }
+
+    @Override
+    public Integer getTrackCount() {
+        return disk.getTrackCount();
+    }
+
+    @Override
+    public Integer getTrackCount(int head) {
+        return disk.getTrackCount(head);
+    }
+
+    @Override
+    public Integer getSectorErrorCount() {
+        return disk.getSectorErrorCount();
+    }
+
+    private void evict() throws IOException {
+        int victim = policy.victim();
+        byte[] data = blocks.remove(victim);
+        if (dirty.remove(victim)) {
+            disk.writeBlock(victim, data);
+        }
+        policy.removed(victim);
+        evictions++;
+    }
+}
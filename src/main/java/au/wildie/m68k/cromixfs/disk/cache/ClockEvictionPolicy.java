@@ -0,0 +1,69 @@
+package au.wildie.m68k.cromixfs.disk.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Second chance eviction. Blocks sit in a ring with a referenced flag, the hand clears flags as it
+ * passes and stops at the first block that has not been referenced since the last pass.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+    private final int[] ring;
+    private final boolean[] referenced;
+    private final boolean[] used;
+    private final int[] freeSlots;
+    private int freeCount;
+    private final Map<Integer, Integer> slots = new HashMap<>();
+    private int hand = 0;
+
+    public ClockEvictionPolicy(int capacity) {
+        ring = new int[capacity];
+        referenced = new boolean[capacity];
+        used = new boolean[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[freeCount++] = capacity - 1 - i;
+        }
+    }
+
+    @Override
+    public void added(int blockNumber) {
+        if (freeCount == 0) {
+            throw new IllegalStateException(String.format("No room for block %d", blockNumber));
+        }
+        int slot = freeSlots[--freeCount];
+        ring[slot] = blockNumber;
+        used[slot] = true;
+        referenced[slot] = false;
+        slots.put(blockNumber, slot);
+    }
+
+    @Override
+    public void accessed(int blockNumber) {
+        Integer slot = slots.get(blockNumber);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    @Override
+    public void removed(int blockNumber) {
+        Integer slot = slots.remove(blockNumber);
+        if (slot != null) {
+            used[slot] = false;
+            freeSlots[freeCount++] = slot;
+            if (slot == hand) {
+                hand = (hand + 1) % ring.length;
+            }
+        }
+    }
+
+    @Override
+    public int victim() {
+        while (!used[hand] || referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % ring.length;
+        }
+        return ring[hand];
+    }
+}
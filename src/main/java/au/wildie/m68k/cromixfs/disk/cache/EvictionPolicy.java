@@ -0,0 +1,15 @@
+package au.wildie.m68k.cromixfs.disk.cache;
+
+/**
+ * Chooses which block a full cache gives up.
+ */
+public interface EvictionPolicy {
+    void added(int blockNumber);
+    void accessed(int blockNumber);
+    void removed(int blockNumber);
+
+    /**
+     * The block to evict next, it is not removed until removed() is called.
+     */
+    int victim();
+}
@@ -0,0 +1,32 @@
+package au.wildie.m68k.cromixfs.disk.cache;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the least recently used block.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+    private final LinkedHashSet<Integer> blocks = new LinkedHashSet<>();
+
+    @Override
+    public void added(int blockNumber) {
+        blocks.add(blockNumber);
+    }
+
+    @Override
+    public void accessed(int blockNumber) {
+        if (blocks.remove(blockNumber)) {
+            blocks.add(blockNumber);
+        }
+    }
+
+    @Override
+    public void removed(int blockNumber) {
+        blocks.remove(blockNumber);
+    }
+
+    @Override
+    public int victim() {
+        return blocks.iterator().next();
+    }
+}
@@ -30,6 +30,13 @@ public abstract class HFEFloppyImage implements DiskInterface {
         FileUtils.writeByteArrayToFile(file, image.toBytes());
     }
 
+    /**
+     * Write the modified sectors back into the image file, in place.
+     */
+    public void persist(File file) throws IOException {
+        image.persist(file);
+    }
+
     public abstract byte[] getInterleave();
 
     @Override
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import au.wildie.m68k.cromixfs.disk.floppy.HFEFloppyImage;
 import au.wildie.m68k.cromixfs.disk.floppy.IMDFloppyException;
 import au.wildie.m68k.cromixfs.disk.floppy.VFDFloppyImage;
@@ -60,7 +61,9 @@ public class CromixHFEFloppyDisk extends HFEFloppyImage {
 
     @Override
     public void flushSuperBlock(byte[] data) {
-        // TODO maybe
+        for (int i = 0; i < 4; i++) {
+            image.write(0, 0, 5 + i, Arrays.copyOfRange(data, 128 * i, 128 * (i + 1)));
+        }
     }
 
     @Override
@@ -74,9 +77,23 @@ public class CromixHFEFloppyDisk extends HFEFloppyImage {
         return image.read(c, h, is);
     }
 
+    /**
+     * Marks the sector modified, so it is encoded back into its track when the image is persisted.
+     */
+    @Override
+    public void writeBlock(int blockNumber, byte[] data) throws IOException {
+        int c = getCylinderForBlock(blockNumber);
+        int h = getHeadForBlock(blockNumber);
+        int s = getSectorForBlock(blockNumber);
+
+        int is = info.getInterleave()[0xFF & s] + 1;
+
+        image.write(c, h, is, data);
+    }
+
     @Override
     public void persist(OutputStream archive) throws IOException {
-        // TODO
+        image.persist(archive);
     }
 
     private int getCylinderForBlock(int block) {
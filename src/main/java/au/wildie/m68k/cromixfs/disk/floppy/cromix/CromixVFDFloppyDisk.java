@@ -46,14 +46,8 @@ public class CromixVFDFloppyDisk extends VFDFloppyImage {
 
     @Override
     public byte[] getSuperBlock() throws IOException {
-        // Will be in the first track, 128byte sectors
-        byte[] block = new byte[512];
-
-        for (int i = 0; i < 4; i++) {
-            System.arraycopy(image.read(0, 0, 5 + i), 0, block, 128 * i, 128);
-        }
-
-        return block;
+        // Will be in the first track, four consecutive 128byte sectors
+        return image.read(0, 0, 5, 4);
     }
 
     @Override
@@ -1,22 +1,73 @@
 package au.wildie.m68k.cromixfs.disk.hxc;
 
+/**
+ * Big-endian CRC-16, x^16+x^12+x^5+1 = (1) 0001 0000 0010 0001 = 0x1021, as used for the ID and data fields of
+ * IBM FM and MFM sectors. Bytes are processed with lookup tables, four at a time where possible.
+ */
 public class CheckSum {
-    public static int calculateCRC(byte[] data, int offset, int length, int initialCRC) {
-        // Big-endian, x^16+x^12+x^5+1 = (1) 0001 0000 0010 0001 = 0x1021
-        int crc = initialCRC;
-
-        for (int i = 0; i < length; i++) {
-            crc = (crc ^ (data[i + offset] << 8));
-            for (int j = 0; j <= 7; j++)	{
-                if ((crc & 0x8000) == 0x8000) {
-                    crc = ((crc << 1) ^ 0x1021);
-                }
-                else {
-                    crc = (crc << 1);
-                }
+    private static final int POLYNOMIAL = 0x1021;
+
+    // TABLE[k][n] is the CRC of byte n followed by k zero bytes
+    private static final int[][] TABLE = new int[4][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
             }
+            TABLE[0][n] = crc & 0xffff;
+        }
+        for (int k = 1; k < TABLE.length; k++) {
+            for (int n = 0; n < 256; n++) {
+                int crc = TABLE[k - 1][n];
+                TABLE[k][n] = ((crc << 8) ^ TABLE[0][crc >> 8]) & 0xffff;
+            }
+        }
+    }
+
+    private int crc;
+
+    public CheckSum(int initialCRC) {
+        this.crc = initialCRC & 0xffff;
+    }
+
+    public static int calculateCRC(byte[] data, int offset, int length, int initialCRC) {
+        return update(initialCRC & 0xffff, data, offset, length);
+    }
+
+    public CheckSum update(byte value) {
+        crc = update(crc, value);
+        return this;
+    }
+
+    public CheckSum update(byte[] data, int offset, int length) {
+        crc = update(crc, data, offset, length);
+        return this;
+    }
+
+    public int getValue() {
+        return crc;
+    }
+
+    private static int update(int crc, byte value) {
+        return ((crc << 8) ^ TABLE[0][((crc >> 8) ^ value) & 0xff]) & 0xffff;
+    }
+
+    private static int update(int crc, byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+
+        for (; i + 4 <= end; i += 4) {
+            crc = TABLE[3][((crc >> 8) ^ data[i]) & 0xff]
+                ^ TABLE[2][(crc ^ data[i + 1]) & 0xff]
+                ^ TABLE[1][data[i + 2] & 0xff]
+                ^ TABLE[0][data[i + 3] & 0xff];
+        }
+        for (; i < end; i++) {
+            crc = update(crc, data[i]);
         }
 
-        return (crc & 0xffff);
+        return crc;
     }
 }
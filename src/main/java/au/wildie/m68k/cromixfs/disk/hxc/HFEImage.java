@@ -1,24 +1,54 @@
 package au.wildie.m68k.cromixfs.disk.hxc;
 
 import static au.wildie.m68k.cromixfs.disk.imd.ImageException.CODE_END_OF_DISK;
+import static au.wildie.m68k.cromixfs.disk.imd.ImageException.CODE_ERROR;
 import static au.wildie.m68k.cromixfs.utils.Int68000.from2BytesUnsigned;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import au.wildie.m68k.cromixfs.disk.DiskImage;
 import au.wildie.m68k.cromixfs.disk.imd.ImageException;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.commons.io.IOUtils;
 
 @Getter
 public class HFEImage extends DiskImage  {
     public static final int SIZE_BLOCK = 0x200;
+    public static final int DEFAULT_CACHED_TRACKS = 16;
 
     private final byte[] content;
     private final HFEHeader header;
     private final TrackEntry[] trackList;
-    private HFETrack currentTrack;
+
+    // Decoded tracks, least recently used first. Modified sectors are encoded back into the content when a track is evicted.
+    @Getter(AccessLevel.NONE)
+    private final Map<Integer, HFETrack> decodedTracks;
+    private final int cachedTracks;
+    private int cacheHits;
+    private int cacheMisses;
+
+    // Blocks of the content that modified sectors have been written into
+    @Getter(AccessLevel.NONE)
+    private final BitSet modifiedBlocks = new BitSet();
+
+    // Every track, when they have all been decoded up front
+    @Getter(AccessLevel.NONE)
+    private Map<Integer, HFETrack> allTracks = Collections.emptyMap();
 
     public static HFEImage from(byte[] content) throws IOException {
         return new HFEImage(content);
@@ -28,7 +58,31 @@ public class HFEImage extends DiskImage  {
         return new HFEImage(IOUtils.toByteArray(src));
     }
 
+    public static HFEImage from(InputStream src, int cachedTracks) throws IOException {
+        return new HFEImage(IOUtils.toByteArray(src), cachedTracks);
+    }
+
     public HFEImage(byte[] content) {
+        this(content, DEFAULT_CACHED_TRACKS);
+    }
+
+    public HFEImage(byte[] content, int cachedTracks) {
+        if (cachedTracks < 1) {
+            throw new IllegalArgumentException(String.format("Track cache capacity must be at least 1, not %d", cachedTracks));
+        }
+        this.cachedTracks = cachedTracks;
+        this.decodedTracks = new LinkedHashMap<Integer, HFETrack>(cachedTracks * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, HFETrack> eldest) {
+                if (size() <= HFEImage.this.cachedTracks) {
+                    return false;
+                }
+                if (eldest.getValue().isModified()) {
+                    eldest.getValue().persist(modifiedBlocks);
+                }
+                return true;
+            }
+        };
         this.content = content;
         this.header = HFEHeader.from(content);
         this.trackList = new TrackEntry[header.getCylinders()];;
@@ -65,25 +119,112 @@ public class HFEImage extends DiskImage  {
 
     @Override
     public void persist(OutputStream archive) {
-        // TODO
+        try {
+            archive.write(toBytes());
+            archive.flush();
+        } catch (IOException e) {
+            throw new ImageException(CODE_ERROR, "Can't write image", e);
+        }
     }
 
-    public HFETrack getTrack(int cylinder, int head) {
-        if (currentTrack == null || currentTrack.getCylinder() != cylinder || currentTrack.getHead() != head) {
-            if (currentTrack != null && currentTrack.isModified()) {
-                currentTrack.persist();
+    /**
+     * Write the modified sectors back into the image file they were read from, only the changed blocks are written.
+     */
+    public void persist(File file) throws IOException {
+        flush();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() != content.length) {
+                throw new IOException(String.format("Image file \"%s\" is %d bytes, expected %d", file.getPath(), channel.size(), content.length));
             }
-            currentTrack = new HFETrack(cylinder, head, header.getTrackEncoding(cylinder, head), header.getBitRate(), trackList[cylinder], content);
-            currentTrack.read();
+            for (int block = modifiedBlocks.nextSetBit(0); block >= 0; block = modifiedBlocks.nextSetBit(block + 1)) {
+                ByteBuffer data = ByteBuffer.wrap(content, block * SIZE_BLOCK, Math.min(SIZE_BLOCK, content.length - block * SIZE_BLOCK));
+                long position = (long) block * SIZE_BLOCK;
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+            channel.force(false);
+        }
+        modifiedBlocks.clear();
+    }
+
+    public int getModifiedBlockCount() {
+        return modifiedBlocks.cardinality();
+    }
+
+    public HFETrack getTrack(int cylinder, int head) {
+        int key = cylinder * getHeads() + head;
+        HFETrack track = allTracks.get(key);
+        if (track == null) {
+            track = decodedTracks.get(key);
         }
-        return currentTrack;
+        if (track != null) {
+            cacheHits++;
+            return track;
+        }
+
+        cacheMisses++;
+        track = decode(cylinder, head);
+        decodedTracks.put(key, track);
+        return track;
+    }
+
+    /**
+     * Decode every track of the image in parallel on the common fork/join pool, rather than on demand.
+     */
+    public HFEImage decodeAllTracks() {
+        return decodeAllTracks(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decode every track of the image in parallel on the given fork/join pool, rather than on demand.
+     */
+    public HFEImage decodeAllTracks(ForkJoinPool pool) {
+        // Write back any changes before the tracks are decoded again
+        flush();
+
+        int heads = Math.min(header.getHeads(), getHeads());
+        try {
+            allTracks = Collections.unmodifiableMap(pool.submit(() -> IntStream.range(0, trackList.length * heads)
+                    .parallel()
+                    .mapToObj(index -> decode(index / heads, index % heads))
+                    .collect(Collectors.toMap(track -> track.getCylinder() * getHeads() + track.getHead(), Function.identity())))
+                    .get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImageException(CODE_ERROR, "Interrupted decoding tracks", e);
+        } catch (ExecutionException e) {
+            throw new ImageException(CODE_ERROR, "Can't decode tracks", e.getCause());
+        }
+        decodedTracks.clear();
+        return this;
     }
 
     public void write(int cylinder, int head, int sector, byte[] data) {
         getSector(cylinder, head, sector).write(data);
     }
 
+    /**
+     * Encode the modified sectors of all the decoded tracks back into the image content.
+     */
+    public void flush() {
+        allTracks.values().stream()
+                .filter(HFETrack::isModified)
+                .forEach(track -> track.persist(modifiedBlocks));
+        decodedTracks.values().stream()
+                .filter(HFETrack::isModified)
+                .forEach(track -> track.persist(modifiedBlocks));
+    }
+
+    private HFETrack decode(int cylinder, int head) {
+        HFETrack track = new HFETrack(cylinder, head, header.getTrackEncoding(cylinder, head), header.getBitRate(), trackList[cylinder], content);
+        track.read();
+        return track;
+    }
+
     public byte[] toBytes() {
+        flush();
         return content;
     }
 }
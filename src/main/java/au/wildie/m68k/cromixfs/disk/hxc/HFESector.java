@@ -3,7 +3,9 @@ package au.wildie.m68k.cromixfs.disk.hxc;
 import java.io.PrintStream;
 
 import au.wildie.m68k.cromixfs.disk.DiskSector;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 
 @Getter
 public class HFESector extends DiskSector {
@@ -13,6 +15,8 @@ public class HFESector extends DiskSector {
     private final int initialCRC;
     private final int accessMark;
     private final byte[] data;
+    // Set when the data is written, cleared once it has been encoded back into the track
+    @Setter(AccessLevel.PACKAGE)
     private boolean modified = false;
     private final boolean valid = true;
 
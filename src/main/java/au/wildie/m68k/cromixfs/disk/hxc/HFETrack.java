@@ -4,6 +4,7 @@ import static au.wildie.m68k.cromixfs.disk.hxc.HFEHeader.ISOIBM_FM_ENCODING;
 import static au.wildie.m68k.cromixfs.disk.hxc.HFEHeader.ISOIBM_MFM_ENCODING;
 import static au.wildie.m68k.cromixfs.disk.hxc.HFEImage.SIZE_BLOCK;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Optional;
 
@@ -31,24 +32,60 @@ public class HFETrack {
 
     private List<HFESector> sectors = new ArrayList<>();
 
+    // REVERSED[b] is the cells of b, first cell in the most significant bit
+    private static final int[] REVERSED = new int[256];
+    // ODD_CELLS[b] is the odd numbered cells of b, first cell in the most significant bit of the nibble
+    private static final int[] ODD_CELLS = new int[256];
+    // DATA_BITS[b] is the data bits of four clock and data cell pairs, the first pair in the most significant bits
+    private static final int[] DATA_BITS = new int[256];
+
+    private static final int MFM_SYNC = 0x4489;
+    private static final int FM_ID_MARK = 0xf57e;
+    private static final int FM_DATA_MARK = 0xf56a;
+    private static final int FM_DATA_MARK_MASK = 0xfffa;
+
+    // Whether a byte of cells can be the middle byte of a mark, for skipping over bytes that can't contain one
+    private static final boolean[] MFM_SYNC_BYTES = markBytes(MFM_SYNC, 0xffff);
+    private static final boolean[] FM_ID_MARK_BYTES = markBytes(FM_ID_MARK, 0xffff);
+    private static final boolean[] FM_DATA_MARK_BYTES = markBytes(FM_DATA_MARK, FM_DATA_MARK_MASK);
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int k = 0; k < 8; k++) {
+                REVERSED[b] |= ((b >> k) & 1) << (7 - k);
+            }
+            for (int k = 0; k < 4; k++) {
+                ODD_CELLS[b] |= ((b >> (2 * k + 1)) & 1) << (3 - k);
+                DATA_BITS[b] |= ((b >> (2 * k)) & 1) << k;
+            }
+        }
+    }
+
     private int codeRate;
     private int cellCount;
     private int cellIndex;
-    private int shiftRegister;
     private int readValue;
-    private byte cellGroup;
     private int lastDataBit;
-    private boolean first = true;
+
+    // The decoded cells of this side of the track, first cell in the most significant bit of each byte,
+    // with the skipped cells of a double rate track removed. A bit is a pair of these cells, clock then data.
+    private byte[] cells;
+    private int rawCellCount;
+    private int position;
+    private int endPosition;
+
+    // The blocks of the image content changed by writing modified sectors
+    private BitSet modifiedBlocks;
 
     protected void read() {
         codeRate = bitRate / (isFMEncoding() ? 125 : 250);
         cellCount = entry.getLength() * 4; // A cell is 2 bits
-        cellIndex = 0;
+        loadCells();
 
         int initialCRC;
         byte[] header = new byte[4];
 
-        while (cellIndex < cellCount) {
+        while (position < endPosition) {
             if (advanceToNextIDAccessMark()) {
                 if (isMFMEncoding()) {
                     initialCRC = 0xb230;
@@ -77,20 +114,20 @@ public class HFETrack {
                         initialCRC = (accessMark == MARK_DELETED) ? 0xbf84 : 0x8fe7;
                     }
 
-                    HFESector sector = new HFESector(header[ADDRESS_SECTOR], cellIndex, sectorSize(header[ADDRESS_SIZE]), initialCRC, accessMark);
-                    for (int i = 0; i < sector.getSize(); i++) {
-                        sector.getData()[i] = readByte();
-                    }
+                    HFESector sector = new HFESector(header[ADDRESS_SECTOR], getCellIndex(position), sectorSize(header[ADDRESS_SIZE]), initialCRC, accessMark);
+                    CheckSum checkSum = new CheckSum(initialCRC);
+                    readBytes(sector.getData(), checkSum);
                     sectors.add(sector);
 
                     expectedCRC = readTwoBytes();
-                    calculatedCrc = sector.calculateChecksum();
+                    calculatedCrc = checkSum.getValue();
                     if (calculatedCrc != expectedCRC) {
                         System.out.printf("Sector %d Data CRC error, expected 0x%04x, calculated 0x%04x\n", header[ADDRESS_SECTOR], expectedCRC, calculatedCrc);
                     }
                 }
             }
         }
+        cellIndex = getCellIndex(position);
     }
 
     public int getSectorCount() {
@@ -105,7 +142,8 @@ public class HFETrack {
         return getSectors().stream().anyMatch(HFESector::isModified);
     }
 
-    protected void persist() {
+    protected void persist(BitSet modifiedBlocks) {
+        this.modifiedBlocks = modifiedBlocks;
         getSectors().stream()
                 .filter(HFESector::isModified)
                 .forEach(hfeSector -> {
@@ -115,6 +153,7 @@ public class HFETrack {
                         writeBits(hfeSector.getData()[j], 8);
                     }
                     writeBits(hfeSector.calculateChecksum(), 16);
+                    hfeSector.setModified(false);
                 });
     }
 
@@ -132,13 +171,11 @@ public class HFETrack {
 
     protected boolean advanceToNextIDAccessMark() {
         int count = isFMEncoding() ? 1 : 3;
-        int accessMark = isFMEncoding() ? 0xf57e : 0x4489;
+        int accessMark = isFMEncoding() ? FM_ID_MARK : MFM_SYNC;
+        boolean[] markBytes = isFMEncoding() ? FM_ID_MARK_BYTES : MFM_SYNC_BYTES;
 
-        while (cellIndex < cellCount && count != 0) {
-            readBit();
-            if (shiftRegister == accessMark) {
-                count--;
-            }
+        while (count != 0 && advanceToNextMark(accessMark, 0xffff, markBytes)) {
+            count--;
         }
 
         return (count == 0);
@@ -146,27 +183,66 @@ public class HFETrack {
 
     protected boolean advanceToNextDataAccessMark() {
         readValue = 0;
-        int count = isFMEncoding() ? 1 : 3;
         if (isFMEncoding()) {
-            while (cellIndex < cellCount && count != 0) {
-                readValue = ((readValue << 1 ) | readBit()) & 0xff;
-                if ((shiftRegister & 0xfffa) == 0xf56a) {
-                    count--;
-                }
+            int start = position;
+            if (!advanceToNextMark(FM_DATA_MARK, FM_DATA_MARK_MASK, FM_DATA_MARK_BYTES)) {
+                return false;
             }
-        } else {
-            while (cellIndex < cellCount && count != 0) {
-                readBit();
-                if (shiftRegister == 0x4489) {
-                    count--;
-                }
-                if (count == 0) {
-                    readValue = readByte();  // read the ident field
+            // The data bits of the mark, or of as many bits as were read
+            int bits = position - start;
+            readValue = readData(2 * position - 16) & (bits < 8 ? (1 << bits) - 1 : 0xff);
+            return true;
+        }
+
+        int count = 3;
+        while (count != 0 && advanceToNextMark(MFM_SYNC, 0xffff, MFM_SYNC_BYTES)) {
+            count--;
+        }
+        if (count == 0) {
+            readValue = readByte();  // read the ident field
+        }
+
+        return (count == 0);
+    }
+
+    /**
+     * Move to the end of the next bit where the last 16 cells, masked, match the mark.
+     * If there is no match the position is left at the end of the track.
+     */
+    private boolean advanceToNextMark(int mark, int mask, boolean[] markBytes) {
+        int next = position + 1;
+        while (next <= endPosition) {
+            // Compare each of the four windows that start within a byte of cells against the one word
+            int start = 2 * next - 16;
+            int index = start >> 3;
+            if ((start & 7) == 0 && !markBytes[cell(index + 1)]) {
+                next += 4;
+                continue;
+            }
+            int word = (cell(index) << 16) | (cell(index + 1) << 8) | cell(index + 2);
+            for (int shift = start & 7; shift < 8 && next <= endPosition; shift += 2, next++) {
+                if (((word >>> (8 - shift)) & mask) == mark) {
+                    position = next;
+                    return true;
                 }
             }
         }
+        position = Math.max(position, endPosition);
+        return false;
+    }
 
-        return (count == 0);
+    private static boolean[] markBytes(int mark, int mask) {
+        // A window starting at an even cell of a byte covers all of the following byte
+        boolean[] markBytes = new boolean[256];
+        for (int b = 0; b < 256; b++) {
+            for (int shift = 0; shift < 8; shift += 2) {
+                int byteMask = (mask >> shift) & 0xff;
+                if ((b & byteMask) == ((mark >> shift) & byteMask)) {
+                    markBytes[b] = true;
+                }
+            }
+        }
+        return markBytes;
     }
 
     private void writeBits(int value, int number) {
@@ -191,58 +267,111 @@ public class HFETrack {
         }
     }
 
-     private int readTwoBytes() {
-        return readBits(16);
+    private int readTwoBytes() {
+        readValue = (readByte() & 0xff) << 8;
+        readValue |= readByte() & 0xff;
+        return readValue;
     }
 
     private byte readByte() {
-        return (byte)readBits(8);
+        readValue = readData(2 * position);
+        position += 8;
+        return (byte)readValue;
     }
 
-    private int readBits(int count) {
-        readValue = 0;
-        for (int i = 0; i < count; i++) {
-            readValue <<= 1;
-            readValue |= readBit();
+    private void readBytes(byte[] data, CheckSum checkSum) {
+        int start = 2 * position;
+        int index = start >> 3;
+        int shift = 8 - (start & 7);
+        if (index < 0 || index + 2 * data.length + 1 > cells.length) {
+            // Runs off the end of the track
+            for (int i = 0; i < data.length; i++) {
+                data[i] = readByte();
+                checkSum.update(data[i]);
+            }
+            return;
         }
-        return readValue;
+
+        int window = cells[index] & 0xff;
+        for (int i = 0; i < data.length; i++) {
+            window = (window << 16) | ((cells[index + 1] & 0xff) << 8) | (cells[index + 2] & 0xff);
+            int pairs = window >>> shift;
+            data[i] = (byte)((DATA_BITS[(pairs >> 8) & 0xff] << 4) | DATA_BITS[pairs & 0xff]);
+            index += 2;
+        }
+        checkSum.update(data, 0, data.length);
+        position += 8 * data.length;
+        readValue = data[data.length - 1] & 0xff;
     }
 
-    private int readBit() {
-        int value = 0;
-        // FM images are shifted by one cell position
-        if (first && (codeRate == 4)) {
-            readNextCell();
+    /**
+     * The data bits of the eight clock and data pairs that start at a cell.
+     */
+    private int readData(int start) {
+        int index = start >> 3;
+        int pairs = ((cell(index) << 16) | (cell(index + 1) << 8) | cell(index + 2)) >>> (8 - (start & 7));
+        return (DATA_BITS[(pairs >> 8) & 0xff] << 4) | DATA_BITS[pairs & 0xff];
+    }
+
+    private int cell(int index) {
+        return index >= 0 && index < cells.length ? cells[index] & 0xff : 0;
+    }
+
+    /**
+     * Gather this side's cells from the interleaved track blocks.
+     */
+    private void loadCells() {
+        int available = 0;
+        for (int i = 0; getTrackOffset(i) < entry.getLength(); i += SIZE_BLOCK / 2) {
+            available += Math.min(SIZE_BLOCK / 2, entry.getLength() - getTrackOffset(i));
         }
-        int level = readNextCell();
-        shiftRegister = ((shiftRegister << 1) | level) & 0xffff;
-        if (codeRate == 4) {
-            readNextCell();  // ignore the next cell
+
+        cells = new byte[codeRate == 4 ? (available + 1) / 2 : available];
+        for (int i = 0; i < available; i += SIZE_BLOCK / 2) {
+            int src = entry.getOffset() * SIZE_BLOCK + getTrackOffset(i);
+            int length = Math.min(SIZE_BLOCK / 2, available - i);
+            if (codeRate == 4) {
+                // Double rate, only the odd cells are used
+                for (int j = 0; j < length; j++) {
+                    cells[(i + j) / 2] |= (byte)(ODD_CELLS[content[src + j] & 0xff] << (((i + j) & 1) == 0 ? 4 : 0));
+                }
+            } else {
+                for (int j = 0; j < length; j++) {
+                    cells[i + j] = (byte)REVERSED[content[src + j] & 0xff];
+                }
+            }
         }
-        value = readNextCell();
-        shiftRegister = ((shiftRegister << 1) | value) & 0xffff;
-        if (codeRate == 4) {
-            readNextCell();  // ignore the next cell
+
+        // The track ends at the cell count or where this side's data runs out, whichever comes first
+        rawCellCount = available * 8;
+        int limit = Math.min(cellCount, rawCellCount + 1);
+        position = 0;
+        if (limit <= 0) {
+            endPosition = 0;
+        } else if (codeRate == 4) {
+            endPosition = Math.max(1, (limit + 2) / 4);
+        } else {
+            endPosition = (limit + 1) / 2;
         }
-        return value;
     }
 
-    private int readNextCell() {
-        if ((cellIndex % 8) == 0) {
-            int trackOffset = getTrackOffset(cellIndex / 8);
-            if (trackOffset >= entry.getLength()) {
-                cellIndex = cellCount;
-                cellGroup = 0;
-            } else {
-                cellGroup = (byte)((content[entry.getOffset() * SIZE_BLOCK + trackOffset]) & 0xff);
-            }
+    /**
+     * The number of cells of the track consumed after reading bits up to the position.
+     */
+    private int getRawCellIndex(int position) {
+        if (codeRate == 4) {
+            // Double rate tracks start one cell in, and skip every second cell
+            return position == 0 ? 0 : 4 * position + 1;
         }
+        return 2 * position;
+    }
 
-        int value = cellGroup & 1;
-        cellGroup >>= 1;
-        cellIndex++;
-        first = false;
-        return value;
+    /**
+     * The cell index to write from, cells after the end of this side's data are counted from the cell count.
+     */
+    private int getCellIndex(int position) {
+        int rawCellIndex = getRawCellIndex(position);
+        return rawCellIndex > rawCellCount ? cellCount + rawCellIndex - rawCellCount : rawCellIndex;
     }
 
     private void writeNextCell(boolean set) {
@@ -259,6 +388,7 @@ public class HFETrack {
         } else {
             content[entry.getOffset() * SIZE_BLOCK + trackOffset] &= ~bit;
         }
+        modifiedBlocks.set(entry.getOffset() + trackOffset / SIZE_BLOCK);
         cellIndex++;
     }
 
@@ -269,8 +399,6 @@ public class HFETrack {
     }
 
     private void setCellPosition(int pos) {
-        int trackOffset = getTrackOffset(pos / 8);
-        cellGroup = (byte)((content[entry.getOffset() * SIZE_BLOCK + trackOffset] >> (cellIndex % 8)) & 0xff);
         cellIndex = pos;
     }
 }
@@ -2,6 +2,7 @@ package au.wildie.m68k.cromixfs.disk.imd;
 
 import au.wildie.m68k.cromixfs.disk.DiskImage;
 import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixFloppyInfo;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -23,6 +24,12 @@ public class IMDImage extends DiskImage {
     private int cylinders= -1;
     private final List<IMDTrack> tracks = new ArrayList<>();
 
+    // Dense lookup of tracks by [cylinder][head] and sectors by [cylinder][head][sector number]
+    @Getter(AccessLevel.NONE)
+    private IMDTrack[][] trackIndex = new IMDTrack[0][];
+    @Getter(AccessLevel.NONE)
+    private IMDSector[][][] sectorIndex = new IMDSector[0][][];
+
     public static final int SECTOR_ENCODING_UNAVAILABLE = 0;
     public static final int SECTOR_ENCODING_NORMAL = 1;
     public static final int SECTOR_ENCODING_COMPRESSED = 2;
@@ -82,15 +89,18 @@ public class IMDImage extends DiskImage {
                 offset += (info.getSectorsPerTrack() * info.getBytesPerSector());
             }
         }
+
+        tracks.forEach(this::indexTrack);
     }
 
     public IMDImage(byte[] raw, PrintStream out) {
         int index = 0;
 
         // Read the header
-        while (raw[index] != 0x1a) {
+        while (index < raw.length && raw[index] != 0x1a) {
             header = header + (char) raw[index++];
         }
+        checkAvailable(raw, index, 1, "header");
         index++; // Skip EOF
 
         out.printf("IMD header: %s\n", header);
@@ -101,6 +111,7 @@ public class IMDImage extends DiskImage {
             IMDTrack track = new IMDTrack();
 
             // Track header
+            checkAvailable(raw, index, 5, "track header");
             track.setMode(raw[index++]);
             track.setCylinder(raw[index++]);
             track.setHead(raw[index++]);
@@ -115,87 +126,41 @@ public class IMDImage extends DiskImage {
 
             // Sector number map
             int[] sectorMap = new int[track.getSectorCount()];
+            checkAvailable(raw, index, sectorMap.length, String.format("sector map: cylinder %d, head %d", track.getCylinder(), track.getHead()));
             for (int i = 0; i < sectorMap.length; i++) {
                 sectorMap[i] = raw[index++];
             }
             track.setSectorMap(sectorMap);
 
-            // Read each sector
+            // Record each sector, the data is decoded when it is first used
             for (int i = 0; i< sectorMap.length; i++) {
-                IMDSector sector = new IMDSector(track.getSectorSize());
+                checkAvailable(raw, index, 1, String.format("sector encoding: cylinder %d, head %d, sector %d", track.getCylinder(), track.getHead(), sectorMap[i]));
+                int encoding = raw[index++];
+                IMDSector sector = new IMDSector(track.getSectorSize(), encoding, raw, index);
 
                 sector.setNumber(sectorMap[i]);
-                sector.setEncoding(raw[index++]);
                 sector.setOffset(offset);
-                sector.setSrcOffset(index);
+                sector.setValid(encoding == SECTOR_ENCODING_NORMAL || encoding == SECTOR_ENCODING_COMPRESSED);
 
-                if (sector.getEncoding() == SECTOR_ENCODING_UNAVAILABLE) {
-                    sector.setValid(false);
+                if (encoding == SECTOR_ENCODING_UNAVAILABLE) {
                     out.printf("Sector is \"Unavailable\" in IMD file: cylinder %d, head %d, sector %d\n", track.getCylinder(), track.getHead(), sector.getNumber());
-                    // Assume normal data
-                } else if (sector.getEncoding() == SECTOR_ENCODING_NORMAL) {
-                    // Normal data
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = raw[index++];
-                    }
-                    sector.setValid(true);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_COMPRESSED) {
-                    // Compressed data
-                    byte value = raw[index++];
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = value;
-                    }
-                    sector.setValid(true);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_DELETED) {
-                    // Deleted data
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = raw[index++];
-                    }
-                    sector.setValid(false);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_DELETED_COMPRESSED) {
-                    // Deleted compressed data
-                    byte value = raw[index++];
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = value;
-                    }
-                    sector.setValid(false);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_ERROR) {
-                    // Data with read errors
+                } else if (encoding == SECTOR_ENCODING_ERROR || encoding == SECTOR_ENCODING_ERROR_COMPRESSED) {
                     out.printf("Sector errors: cylinder %d, head %d, sector %d\n", track.getCylinder(), track.getHead(), sector.getNumber());
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = raw[index++];
-                    }
-                    sector.setValid(false);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_ERROR_COMPRESSED) {
-                    // Compressed data with read errors
-                    out.printf("Sector errors: cylinder %d, head %d, sector %d\n", track.getCylinder(), track.getHead(), sector.getNumber());
-                    byte value = raw[index++];
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = value;
-                    }
-                    sector.setValid(false);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_DELETED_ERROR) {
-                    // Deleted data with read errors
-                    out.printf("Deleted sector errors: cylinder %d, head %d, sector %d\n", track.getCylinder(), track.getHead(), sector.getNumber());
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = raw[index++];
-                    }
-                    sector.setValid(false);
-                } else if (sector.getEncoding() == SECTOR_ENCODING_DELETED_ERROR_COMPRESSED) {
-                    // Compressed deleted data with read errors
+                } else if (encoding == SECTOR_ENCODING_DELETED_ERROR || encoding == SECTOR_ENCODING_DELETED_ERROR_COMPRESSED) {
                     out.printf("Deleted sector errors: cylinder %d, head %d, sector %d\n", track.getCylinder(), track.getHead(), sector.getNumber());
-                    byte value = raw[index++];
-                    for (int j = 0; j < track.getSectorSize(); j++) {
-                        sector.getData()[j] = value;
-                    }
-                    sector.setValid(false);
-                } else {
+                } else if (encoding < SECTOR_ENCODING_UNAVAILABLE || encoding >= SECTOR_ENCODING_UNKNOWN) {
                     out.printf("Unexpected sector encoding: cylinder %d, head %d, sector %d, encoding %d\n", track.getCylinder(), track.getHead(), sector.getNumber(), sector.getEncoding());
-                    sector.setValid(false);
                 }
+
+                int length = getEncodedLength(encoding, track.getSectorSize());
+                if (index + length > raw.length) {
+                    throw new ImageException(CODE_ERROR, String.format("Unexpected end of IMD file: cylinder %d, head %d, sector %d", track.getCylinder(), track.getHead(), sector.getNumber()));
+                }
+                index += length;
+
                 track.getSectors().add(sector);
 
-                offset += sector.getData().length;
+                offset += sector.getSize();
             }
 
             tracks.add(track);
@@ -204,10 +169,18 @@ public class IMDImage extends DiskImage {
         heads++;
         cylinders++;
 
+        tracks.forEach(this::indexTrack);
+
         out.printf("Read %d tracks%n", tracks.size());
         out.printf("%n%s%n", getSectorErrorSummary());
     }
 
+    private static void checkAvailable(byte[] raw, int index, int count, String what) {
+        if (index + count > raw.length) {
+            throw new ImageException(CODE_ERROR, String.format("Unexpected end of IMD file, reading %s", what));
+        }
+    }
+
     public int size() {
         return tracks.stream()
                 .mapToInt(track -> track.getSectorCount() * track.getSectorSize())
@@ -251,16 +224,21 @@ public class IMDImage extends DiskImage {
 
                 track.getSectors().forEach(sector -> {
                     try {
-                        out.write(sector.getEncoding());
-                        if (sector.getEncoding() == SECTOR_ENCODING_NORMAL
-                         || sector.getEncoding() == SECTOR_ENCODING_DELETED
-                         || sector.getEncoding() == SECTOR_ENCODING_DELETED_ERROR
-                         || sector.getEncoding() == SECTOR_ENCODING_ERROR) {
+                        int encoding = sector.getEncoding();
+                        if (isCompressed(encoding) && !sector.isUniform()) {
+                            // Written to since it was read, each compressed encoding follows its uncompressed one
+                            encoding--;
+                        }
+                        out.write(encoding);
+                        if (encoding == SECTOR_ENCODING_NORMAL
+                         || encoding == SECTOR_ENCODING_DELETED
+                         || encoding == SECTOR_ENCODING_DELETED_ERROR
+                         || encoding == SECTOR_ENCODING_ERROR) {
                             // Uncompressed, write all bytes
                             out.write(sector.getData());
                         } else {
                             // Compressed, write one byte, all other bytes are the same as the first byte
-                            out.write(sector.getData()[0]);
+                            out.write(sector.getFill());
                         }
                     } catch (IOException e) {
                         throw new ImageException(CODE_ERROR, "Can't write sector data");
@@ -306,9 +284,7 @@ public class IMDImage extends DiskImage {
     }
 
     public void initTrack(int cylinderNumber, int headNumber, Pair<Integer,Integer> sectorInfo) {
-        IMDTrack track = tracks.stream()
-                .filter(t -> t.getCylinder() == cylinderNumber && t.getHead() == headNumber)
-                .findFirst()
+        IMDTrack track = Optional.ofNullable(lookupTrack(cylinderNumber, headNumber))
                 .orElseGet(() -> {
                     IMDTrack t = new IMDTrack();
                     t.setCylinder(cylinderNumber);
@@ -333,6 +309,12 @@ public class IMDImage extends DiskImage {
             sector.setEncoding(1);
             track.getSectors().add(sector);
         }
+
+        // Replace any stale sectors for this track
+        if (lookupTrack(cylinderNumber, headNumber) == track) {
+            sectorIndex[cylinderNumber][headNumber] = null;
+        }
+        indexTrack(track);
     }
 
     public IMDTrack getTrack(int trackIndex) {
@@ -343,22 +325,76 @@ public class IMDImage extends DiskImage {
         if (cylinderNumber >= this.cylinders) {
             throw new ImageException(CODE_END_OF_DISK, String.format("Cylinder %d does not exist", cylinderNumber));
         }
-        return tracks.stream()
-                .filter(track -> track.getCylinder() == cylinderNumber && track.getHead() == headNumber)
-                .findFirst()
-                .orElseThrow(() -> new ImageException(CODE_ERROR, String.format("Cannot find cylinder %d, head %d", cylinderNumber, headNumber)));
+        IMDTrack track = lookupTrack(cylinderNumber, headNumber);
+        if (track == null) {
+            throw new ImageException(CODE_ERROR, String.format("Cannot find cylinder %d, head %d", cylinderNumber, headNumber));
+        }
+        return track;
     }
 
     public IMDSector getSector(int cylinderNumber, int headNumber, int sectorNumber) {
         if (cylinderNumber >= this.cylinders) {
             throw new ImageException(CODE_END_OF_DISK, String.format("Cylinder %d does not exist", cylinderNumber));
         }
-        return tracks.stream()
-                .filter(track -> track.getCylinder() == cylinderNumber && track.getHead() == headNumber)
-                .flatMap(track -> track.getSectors().stream())
-                .filter(sector -> sector.getNumber() == sectorNumber)
-                .findFirst()
-                .orElseThrow(() -> new ImageException(CODE_ERROR, String .format("Cannot find cylinder %d, head %d, sector %d.", cylinderNumber, headNumber, sectorNumber)));
+        IMDSector sector = lookupSector(cylinderNumber, headNumber, sectorNumber);
+        if (sector == null) {
+            throw new ImageException(CODE_ERROR, String .format("Cannot find cylinder %d, head %d, sector %d.", cylinderNumber, headNumber, sectorNumber));
+        }
+        return sector;
+    }
+
+    private IMDTrack lookupTrack(int cylinderNumber, int headNumber) {
+        if (cylinderNumber < 0 || cylinderNumber >= trackIndex.length || trackIndex[cylinderNumber] == null
+         || headNumber < 0 || headNumber >= trackIndex[cylinderNumber].length) {
+            return null;
+        }
+        return trackIndex[cylinderNumber][headNumber];
+    }
+
+    private IMDSector lookupSector(int cylinderNumber, int headNumber, int sectorNumber) {
+        if (cylinderNumber < 0 || cylinderNumber >= sectorIndex.length || sectorIndex[cylinderNumber] == null
+         || headNumber < 0 || headNumber >= sectorIndex[cylinderNumber].length) {
+            return null;
+        }
+        IMDSector[] sectors = sectorIndex[cylinderNumber][headNumber];
+        if (sectors == null || sectorNumber < 0 || sectorNumber >= sectors.length) {
+            return null;
+        }
+        return sectors[sectorNumber];
+    }
+
+    private void indexTrack(IMDTrack track) {
+        int c = track.getCylinder();
+        int h = track.getHead();
+        if (c < 0 || h < 0) {
+            return;
+        }
+
+        if (c >= trackIndex.length) {
+            trackIndex = Arrays.copyOf(trackIndex, c + 1);
+            sectorIndex = Arrays.copyOf(sectorIndex, c + 1);
+        }
+        if (trackIndex[c] == null || h >= trackIndex[c].length) {
+            trackIndex[c] = trackIndex[c] == null ? new IMDTrack[h + 1] : Arrays.copyOf(trackIndex[c], h + 1);
+            sectorIndex[c] = sectorIndex[c] == null ? new IMDSector[h + 1][] : Arrays.copyOf(sectorIndex[c], h + 1);
+        }
+
+        // The first track and sector found for a position wins, as per the original linear search
+        if (trackIndex[c][h] == null) {
+            trackIndex[c][h] = track;
+        }
+        if (trackIndex[c][h] != track || sectorIndex[c][h] != null) {
+            return;
+        }
+
+        int maxNumber = track.getSectors().stream().mapToInt(IMDSector::getNumber).max().orElse(-1);
+        IMDSector[] sectors = new IMDSector[maxNumber + 1];
+        for (IMDSector sector : track.getSectors()) {
+            if (sector.getNumber() >= 0 && sectors[sector.getNumber()] == null) {
+                sectors[sector.getNumber()] = sector;
+            }
+        }
+        sectorIndex[c][h] = sectors;
     }
 
     public int getTrackCount() {
@@ -370,6 +406,29 @@ public class IMDImage extends DiskImage {
         return cylinders;
     }
 
+    public static boolean isCompressed(int encoding) {
+        return encoding == SECTOR_ENCODING_COMPRESSED
+            || encoding == SECTOR_ENCODING_DELETED_COMPRESSED
+            || encoding == SECTOR_ENCODING_ERROR_COMPRESSED
+            || encoding == SECTOR_ENCODING_DELETED_ERROR_COMPRESSED;
+    }
+
+    /**
+     * The number of bytes a sector's data occupies in an IMD file.
+     */
+    public static int getEncodedLength(int encoding, int sectorSize) {
+        if (encoding == SECTOR_ENCODING_NORMAL
+         || encoding == SECTOR_ENCODING_DELETED
+         || encoding == SECTOR_ENCODING_ERROR
+         || encoding == SECTOR_ENCODING_DELETED_ERROR) {
+            return sectorSize;
+        }
+        if (isCompressed(encoding)) {
+            return 1;
+        }
+        return 0;
+    }
+
     public static boolean isValidEncoding(IMDSector sector) {
         return SECTOR_ENCODING_VALID.contains(sector.getEncoding());
     }
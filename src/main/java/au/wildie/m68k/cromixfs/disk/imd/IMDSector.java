@@ -1,9 +1,12 @@
 package au.wildie.m68k.cromixfs.disk.imd;
 
 import au.wildie.m68k.cromixfs.disk.DiskSector;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Arrays;
+
 import static au.wildie.m68k.cromixfs.disk.imd.IMDImage.SECTOR_ENCODING_NORMAL;
 
 @Getter
@@ -14,7 +17,16 @@ public class IMDSector extends DiskSector {
     private int offset;
     private int srcOffset;
     private boolean valid;
+    private final int size;
+
+    // The sector data is not decoded from the raw image until it is first requested. The raw image is shared by
+    // all the sectors of the image and is not copied, it is kept until the last of them has been decoded.
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
     private byte[] data;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private byte[] src;
 
     public IMDSector(int number, int offset, int size) {
         this.number = number;
@@ -22,6 +34,7 @@ public class IMDSector extends DiskSector {
         this.offset = offset;
         this.srcOffset = offset;
         this.valid = true;
+        this.size = size;
         this.data = new byte[size];
 
         for (int i = 0; i < size; i++) {
@@ -30,6 +43,65 @@ public class IMDSector extends DiskSector {
     }
 
     public IMDSector(int size) {
-        data = new byte[size];
+        this.size = size;
+        this.data = new byte[size];
+    }
+
+    /**
+     * A sector whose data is held in the raw IMD image at srcOffset, either the complete sector data
+     * or, for the compressed encodings, a single fill value.
+     */
+    public IMDSector(int size, int encoding, byte[] src, int srcOffset) {
+        this.size = size;
+        this.encoding = encoding;
+        this.src = src;
+        this.srcOffset = srcOffset;
+    }
+
+    public byte[] getData() {
+        if (data == null) {
+            data = new byte[size];
+            if (IMDImage.isCompressed(encoding)) {
+                Arrays.fill(data, src[srcOffset]);
+            } else if (IMDImage.getEncodedLength(encoding, size) == size) {
+                System.arraycopy(src, srcOffset, data, 0, size);
+            }
+            src = null;
+        }
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+        this.src = null;
+    }
+
+    /**
+     * The value of the first byte of the sector, the fill value of a compressed sector, without decoding the sector.
+     */
+    public byte getFill() {
+        if (data == null && IMDImage.getEncodedLength(encoding, size) > 0) {
+            return src[srcOffset];
+        }
+        return getData()[0];
+    }
+
+    /**
+     * Whether every byte of the sector has the same value, so it can be written compressed.
+     */
+    public boolean isUniform() {
+        if (data == null) {
+            return IMDImage.isCompressed(encoding);
+        }
+        for (byte b : data) {
+            if (b != data[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isLoaded() {
+        return data != null;
     }
 }
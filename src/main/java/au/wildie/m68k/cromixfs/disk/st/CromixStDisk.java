@@ -1,17 +1,35 @@
 package au.wildie.m68k.cromixfs.disk.st;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.imd.ImageException;
 import au.wildie.m68k.cromixfs.fs.cromix.CromixFileSystem;
 import lombok.Getter;
-import lombok.Setter;
 
 import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
-public class CromixStDisk implements DiskInterface {
+import static au.wildie.m68k.cromixfs.disk.imd.ImageException.CODE_ERROR;
+
+/**
+ * An ST506/STDC hard disk image. The image file is not read up front, the partition in use is memory mapped
+ * when its first block is requested and blocks are copied out of the mapping on demand.
+ */
+public class CromixStDisk implements DiskInterface, Closeable {
     private static final int SECTOR_SIZE = 512; // Disks are always 512 byte sectors
+    private static final int CACHED_BLOCKS = 1024;
 
-    private final byte[][][][] media;
+    private final File file;
+    private final FileChannel channel;
     private final STDCDiskInfo info;
 
     @Getter
@@ -21,46 +39,77 @@ public class CromixStDisk implements DiskInterface {
     @Getter
     private int currentPartition = 0;
 
-    public CromixStDisk(String fileName, Integer partitionIndex) throws STDiskException {
-        byte[] sector = new byte[SECTOR_SIZE];
+    private final long partitionOffset;
+    private final long partitionLength;
+    private MappedByteBuffer partition;
 
-        try (InputStream in = new FileInputStream(fileName)) {
-            if (in.read(sector, 0, SECTOR_SIZE) != SECTOR_SIZE) {
-                throw new STDiskException("Could not read sector 0");
+    // Blocks that have been handed out. Blocks that have been passed to writeBlock, or found to have changed as
+    // they age out, are kept until they are written back. Clean blocks that age out are only kept while they are
+    // still referenced elsewhere, so a later change to them is seen and they keep their identity.
+    private final Map<Integer, byte[]> modifiedBlocks = new HashMap<>();
+    private final Map<Integer, BlockReference> retainedBlocks = new HashMap<>();
+    private final ReferenceQueue<byte[]> released = new ReferenceQueue<>();
+    private final Map<Integer, byte[]> cachedBlocks = new LinkedHashMap<Integer, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            if (size() <= CACHED_BLOCKS) {
+                return false;
             }
-        } catch (IOException e) {
-            throw new STDiskException(String.format("Error reading initial sector from file \"%s\"\n", fileName), e);
-        }
-
-        info = new STDCDiskInfo(sector);
-        if (info.getBytesPerSector() != SECTOR_SIZE) {
-            throw new STDiskException(String.format("Unexpected drive geometry, sector size is %d", info.getBytesPerSector()));
-        }
-
-        // Allocate space for the media
-        media = new byte[info.getCylinderCount()][info.getSurfaceCount()][info.getSectorsPerTrack()][info.getBytesPerSector()];
-
-        try (InputStream in = new FileInputStream(fileName)) {
-            for (int c = 0; c < info.getCylinderCount(); c++) {
-                for (int h = 0; h < info.getSurfaceCount(); h++) {
-                    for (int s = 0; s < info.getSectorsPerTrack(); s++) {
-                        try {
-                            int bytesRead = in.read(media[c][h][s]);
-                            if (bytesRead != SECTOR_SIZE) {
-                                throw new STDiskException(String.format("Could only read %d bytes for sector: cylinder=%d, surface=%d, sector=%d", bytesRead, c, h, s));
-                            }
-                        } catch (IOException e) {
-                            throw new STDiskException(String.format("Failed to sector: cylinder=%d, surface=%d, sector=%d", c, h, s), e);
-                        }
-                    }
-                }
+            if (isModified(eldest.getKey(), eldest.getValue())) {
+                modifiedBlocks.put(eldest.getKey(), eldest.getValue());
+            } else {
+                retainedBlocks.put(eldest.getKey(), new BlockReference(eldest.getKey(), eldest.getValue(), released));
             }
+            return true;
+        }
+    };
+
+    public CromixStDisk(String fileName, Integer partitionIndex) throws STDiskException {
+        file = new File(fileName);
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         } catch (IOException e) {
-            throw new STDiskException(String.format("Error reading disk image file \"%s\"\n", fileName), e);
+            throw new STDiskException(String.format("Error opening disk image file \"%s\"\n", fileName), e);
         }
 
-        partitionTable = new STDCPartitionTable(info, media);
-        currentPartition = Optional.ofNullable(partitionIndex).orElse(0);
+        try {
+            try {
+                info = new STDCDiskInfo(readSector(0));
+            } catch (IOException e) {
+                throw new STDiskException(String.format("Error reading initial sector from file \"%s\"\n", fileName), e);
+            }
+            if (info.getBytesPerSector() != SECTOR_SIZE) {
+                throw new STDiskException(String.format("Unexpected drive geometry, sector size is %d", info.getBytesPerSector()));
+            }
+
+            long imageSize = channel.size();
+            long expectedSize = (long) info.getCylinderCount() * getCylinderSize();
+            if (imageSize < expectedSize) {
+                throw new STDiskException(String.format("Disk image file \"%s\" is %d bytes, geometry requires %d bytes", fileName, imageSize, expectedSize));
+            }
+
+            try {
+                partitionTable = new STDCPartitionTable(info, readSector(info.getStartOfPartitionTable() / SECTOR_SIZE));
+            } catch (IOException e) {
+                throw new STDiskException(String.format("Error reading partition table from file \"%s\"\n", fileName), e);
+            }
+            currentPartition = Optional.ofNullable(partitionIndex).orElse(0);
+
+            int startCylinder = getStartingCylinder(currentPartition);
+            int cylinders = partitionTable.getNumberOfCylinders(currentPartition).orElse(info.getCylinderCount() - startCylinder);
+            partitionOffset = (long) startCylinder * getCylinderSize();
+            partitionLength = Math.min((long) cylinders * getCylinderSize(), imageSize - partitionOffset);
+        } catch (STDiskException | IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // swallow it
+            }
+            if (e instanceof STDiskException) {
+                throw (STDiskException) e;
+            }
+            throw new STDiskException(String.format("Error reading disk image file \"%s\"\n", fileName), e);
+        }
     }
 
     public void list(PrintStream out) throws IOException {
@@ -77,21 +126,88 @@ public class CromixStDisk implements DiskInterface {
     }
 
     @Override
-    public byte[] getSuperBlock() {
+    public byte[] getSuperBlock() throws IOException {
         return getBlock(1);
     }
 
     @Override
     public void flushSuperBlock(byte[] data) {
-        System.arraycopy(data, 0, getBlock(1), 0, data.length);
+        try {
+            byte[] block = getBlock(1);
+            System.arraycopy(data, 0, block, 0, data.length);
+            modifiedBlocks.put(1, block);
+        } catch (IOException e) {
+            throw new ImageException(CODE_ERROR, "Can't write super block", e);
+        }
     }
 
     @Override
-    public byte[] getBlock(int block) {
-        int c = getCylinderForBlock(this.currentPartition, block);
-        int h = getHeadForBlock(block);
-        int s = getSectorForBlock(block);
-        return media[c][h][s];
+    public byte[] getBlock(int block) throws IOException {
+        byte[] data = modifiedBlocks.get(block);
+        if (data == null) {
+            data = cachedBlocks.get(block);
+        }
+        if (data == null) {
+            expungeReleased();
+            BlockReference retained = retainedBlocks.remove(block);
+            data = retained == null ? null : retained.get();
+            if (data != null) {
+                cachedBlocks.put(block, data);
+            }
+        }
+        if (data == null) {
+            ByteBuffer view = getPartition().duplicate();
+            long position = (long) block * SECTOR_SIZE;
+            if (block < 0 || position + SECTOR_SIZE > view.limit()) {
+                throw new IOException(String.format("Block %d is outside partition %d", block, currentPartition));
+            }
+            data = new byte[SECTOR_SIZE];
+            view.position((int) position);
+            view.get(data);
+            cachedBlocks.put(block, data);
+        }
+        return data;
+    }
+
+    /**
+     * Keep a changed block until it is written back. The array may have been handed out before the block aged
+     * out of the cache, the data is then copied into the array now held for the block.
+     */
+    @Override
+    public void writeBlock(int block, byte[] data) throws IOException {
+        byte[] current = getBlock(block);
+        if (current != data) {
+            System.arraycopy(data, 0, current, 0, Math.min(data.length, current.length));
+        }
+        modifiedBlocks.put(block, current);
+    }
+
+    /**
+     * Write the modified blocks of the current partition back into the image file, in place.
+     */
+    public void flush() throws IOException {
+        Map<Integer, byte[]> modified = getModifiedBlocks();
+        if (modified.isEmpty()) {
+            return;
+        }
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (Map.Entry<Integer, byte[]> entry : modified.entrySet()) {
+                ByteBuffer data = ByteBuffer.wrap(entry.getValue());
+                long position = partitionOffset + (long) entry.getKey() * SECTOR_SIZE;
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+            }
+            out.force(false);
+        }
+        modifiedBlocks.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        partition = null;
+        channel.close();
     }
 
     @Override
@@ -101,13 +217,29 @@ public class CromixStDisk implements DiskInterface {
 
     @Override
     public void persist(OutputStream archive) throws IOException {
-        for (int c = 0; c < info.getCylinderCount(); c++) {
-            for (int h = 0; h < info.getSurfaceCount(); h++) {
-                for (int s = 0; s < info.getSectorsPerTrack(); s++) {
-                    archive.write(media[c][h][s]);
+        Map<Long, byte[]> modified = new HashMap<>();
+        getModifiedBlocks().forEach((block, data) -> modified.put(partitionOffset / SECTOR_SIZE + block, data));
+
+        // Stream the image a track at a time, substituting any modified sectors
+        ByteBuffer track = ByteBuffer.allocate(info.getSectorsPerTrack() * SECTOR_SIZE);
+        long trackCount = (long) info.getCylinderCount() * info.getSurfaceCount();
+        for (long t = 0; t < trackCount; t++) {
+            track.clear();
+            long position = t * track.capacity();
+            while (track.hasRemaining()) {
+                if (channel.read(track, position + track.position()) < 0) {
+                    throw new IOException(String.format("Unexpected end of disk image file \"%s\"", file.getPath()));
+                }
+            }
+            for (int s = 0; s < info.getSectorsPerTrack(); s++) {
+                byte[] data = modified.get(t * info.getSectorsPerTrack() + s);
+                if (data != null) {
+                    System.arraycopy(data, 0, track.array(), s * SECTOR_SIZE, SECTOR_SIZE);
                 }
             }
+            archive.write(track.array(), 0, track.capacity());
         }
+        archive.flush();
     }
 
     @Override
@@ -130,20 +262,76 @@ public class CromixStDisk implements DiskInterface {
         return null;
     }
 
-    private int getCylinderForBlock(int unit, int block) {
-        return block / (info.getSurfaceCount() * info.getSectorsPerTrack()) + getStartingCylinder(unit);
+    private MappedByteBuffer getPartition() throws IOException {
+        if (partition == null) {
+            if (partitionLength > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Partition %d is too large to map, %d bytes", currentPartition, partitionLength));
+            }
+            partition = channel.map(FileChannel.MapMode.READ_ONLY, partitionOffset, partitionLength);
+        }
+        return partition;
     }
 
-    private int getStartingCylinder(int unit) {
-        return partitionTable.getStartCylinder(unit).orElse(1);
+    private Map<Integer, byte[]> getModifiedBlocks() throws IOException {
+        Map<Integer, byte[]> modified = new HashMap<>(modifiedBlocks);
+        for (Map.Entry<Integer, byte[]> entry : cachedBlocks.entrySet()) {
+            if (isModified(entry.getKey(), entry.getValue())) {
+                modified.put(entry.getKey(), entry.getValue());
+            }
+        }
+        expungeReleased();
+        for (Map.Entry<Integer, BlockReference> entry : retainedBlocks.entrySet()) {
+            byte[] data = entry.getValue().get();
+            if (data != null && isModified(entry.getKey(), data)) {
+                modified.put(entry.getKey(), data);
+            }
+        }
+        return modified;
     }
 
-    private int getHeadForBlock(int block) {
-        return (block / info.getSectorsPerTrack()) % info.getSurfaceCount();
+    private void expungeReleased() {
+        Reference<? extends byte[]> reference;
+        while ((reference = released.poll()) != null) {
+            retainedBlocks.remove(((BlockReference) reference).block, reference);
+        }
+    }
+
+    private boolean isModified(int block, byte[] data) {
+        try {
+            ByteBuffer view = getPartition().duplicate();
+            view.position(block * SECTOR_SIZE);
+            view.limit(block * SECTOR_SIZE + SECTOR_SIZE);
+            return !view.equals(ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            throw new ImageException(CODE_ERROR, String.format("Can't read block %d", block), e);
+        }
+    }
+
+    private byte[] readSector(long sectorIndex) throws IOException {
+        ByteBuffer sector = ByteBuffer.allocate(SECTOR_SIZE);
+        long position = sectorIndex * SECTOR_SIZE;
+        while (sector.hasRemaining()) {
+            if (channel.read(sector, position + sector.position()) < 0) {
+                throw new IOException(String.format("Could not read sector %d", sectorIndex));
+            }
+        }
+        return sector.array();
+    }
+
+    private long getCylinderSize() {
+        return (long) info.getSurfaceCount() * info.getSectorsPerTrack() * SECTOR_SIZE;
     }
 
-    private int getSectorForBlock(int block) {
-        return (block % info.getSectorsPerTrack());
+    private int getStartingCylinder(int unit) {
+        return partitionTable.getStartCylinder(unit).orElse(1);
     }
 
+    private static class BlockReference extends WeakReference<byte[]> {
+        private final int block;
+
+        BlockReference(int block, byte[] data, ReferenceQueue<byte[]> queue) {
+            super(data, queue);
+            this.block = block;
+        }
+    }
 }
@@ -16,10 +16,6 @@ public class STDCDiskInfo {
     private byte[] hardDiskIdentifier;  // 4 bytes
     private int writePrecompCylinder;   // 2 bytes
 
-    public STDCDiskInfo(byte[][][][] media) {
-        this(media[0][0][0]);
-    }
-
     public STDCDiskInfo(byte[] sector) {
         cylinderCount =         ((0xFF & sector[0x68]) << 8) + (0xFF & sector[0x69]);
         alternateTrackCount =   ((0xFF & sector[0x6A]) << 8) + (0xFF & sector[0x6B]);
@@ -13,10 +13,6 @@ public class STDCPartitionTable {
     private final STDCDiskInfo info;
     private final Entry[] table = new Entry[TABLE_SIZE];
 
-    public STDCPartitionTable(STDCDiskInfo info, byte[][][][] media) {
-        this(info, media[0][0][info.getStartOfPartitionTable() / info.getBytesPerSector()]);
-    }
-
     public STDCPartitionTable(STDCDiskInfo info, byte[] sector) {
         this.info = info;
 
@@ -37,6 +33,10 @@ public class STDCPartitionTable {
         return Optional.ofNullable(table[partitionIndex]).map(Entry::getStartCylinder);
     }
 
+    public Optional<Integer> getNumberOfCylinders(int partitionIndex) {
+        return Optional.ofNullable(table[partitionIndex]).map(Entry::getNumberOfCylinders);
+    }
+
     @ToString
     @Getter
     @AllArgsConstructor
@@ -2,28 +2,45 @@ package au.wildie.m68k.cromixfs.disk.vfd;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Comparator;
 import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
 import au.wildie.m68k.cromixfs.disk.imd.ImageException;
 import au.wildie.m68k.cromixfs.disk.imd.IMDSector;
 import au.wildie.m68k.cromixfs.disk.imd.IMDTrack;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import static au.wildie.m68k.cromixfs.disk.imd.ImageException.CODE_ERROR;
 
-@Getter
-@RequiredArgsConstructor
+/**
+ * A VFD image held in a heap or memory mapped buffer. The buffer contains the whole image, including the
+ * header, so the offsets from getTrackAndOffset() index it directly and sectors are read straight out of it.
+ */
 public class VFDImage {
+    @Getter
     public final ImageInfo info;
-    public final byte[] data;
+    private final ByteBuffer image;
+
+    public VFDImage(ImageInfo info, byte[] data) throws IOException {
+        this.info = info;
+        byte[] header = info.toBytes();
+        this.image = ByteBuffer.allocate(header.length + data.length);
+        this.image.put(header).put(data).clear();
+    }
+
+    public VFDImage(ImageInfo info, ByteBuffer image) {
+        this.info = info;
+        this.image = image.duplicate();
+        this.image.clear();
+    }
 
     public static VFDImage fromFile(int driveId, String filePath, PrintStream out) throws IOException, InvalidVFDImageException {
         return fromFile(driveId, new File(filePath), out);
@@ -37,20 +54,25 @@ public class VFDImage {
             throw new ImageException(CODE_ERROR, String.format("Drive %d: IMD file %s does not exist%n", driveId, imdFile.getPath()));
         }
 
-        try (InputStream src = new FileInputStream(imdFile)) {
-            return fromStream(src);
+        try (FileChannel channel = FileChannel.open(imdFile.toPath(), StandardOpenOption.READ)) {
+            return from(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
         }
     }
 
     public static VFDImage fromStream(InputStream imdStream) throws IOException, InvalidVFDImageException {
-        byte[] raw = IOUtils.toByteArray(imdStream);
-        ImageInfo info = ImageInfo.fromBytes(raw);
-        byte[] data = new byte[raw.length - ImageInfo.SIZE];
-        System.arraycopy(raw, ImageInfo.SIZE, data, 0, data.length);
-        return new VFDImage(info, data);
+        return from(ByteBuffer.wrap(IOUtils.toByteArray(imdStream)));
     }
 
-    public static VFDImage from(IMDImage imd) {
+    public static VFDImage from(ByteBuffer image) throws InvalidVFDImageException {
+        if (image.remaining() < ImageInfo.SIZE) {
+            throw new InvalidVFDImageException("Image is too short");
+        }
+        byte[] header = new byte[ImageInfo.SIZE];
+        image.duplicate().get(header);
+        return new VFDImage(ImageInfo.fromBytes(header), image.slice());
+    }
+
+    public static VFDImage from(IMDImage imd) throws IOException {
         ImageInfo info = new ImageInfo(imd.getCylinders(), imd.getHeads());
 
         ByteArrayOutputStream data = new ByteArrayOutputStream();
@@ -82,20 +104,47 @@ public class VFDImage {
     }
 
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream image = new ByteArrayOutputStream();
-        image.write(info.toBytes());
-        image.write(data);
-        return image.toByteArray();
+        byte[] header = info.toBytes();
+        ByteBuffer data = image.duplicate();
+        data.position(header.length);
+        byte[] bytes = new byte[header.length + data.remaining()];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        data.get(bytes, header.length, data.remaining());
+        return bytes;
     }
 
     public byte[] read(int cylinder, int head, int sector) throws IOException {
-        Pair<TrackInfo, Integer> trackAndOffset = getTrackAndOffset(cylinder, head, sector - 1);
-//        System.out.printf("cyl[%2d], head[%d], sector[%2d]: offset=%d (0x%x)\n", cylinder, head, sector, trackAndOffset.getRight(), trackAndOffset.getRight());
-        byte[] readData = new byte[trackAndOffset.getLeft().getSectorBytes()];
-        System.arraycopy(toBytes(), trackAndOffset.getRight(), readData, 0, trackAndOffset.getLeft().getSectorBytes());
+        return read(cylinder, head, sector, 1);
+    }
+
+    /**
+     * Read count consecutive sectors from a track, starting at sector.
+     */
+    public byte[] read(int cylinder, int head, int sector, int count) throws IOException {
+        ByteBuffer sectors = slice(cylinder, head, sector, count);
+        byte[] readData = new byte[sectors.remaining()];
+        sectors.get(readData);
         return readData;
     }
 
+    /**
+     * A view of count consecutive sectors of a track, starting at sector. The image is not copied.
+     */
+    public ByteBuffer slice(int cylinder, int head, int sector, int count) throws IOException {
+        Pair<TrackInfo, Integer> trackAndOffset = getTrackAndOffset(cylinder, head, sector - 1);
+        TrackInfo track = trackAndOffset.getLeft();
+        int offset = trackAndOffset.getRight();
+        int length = count * track.getSectorBytes();
+        if (sector < 1 || count < 0 || sector - 1 + count > track.getSectors() || offset < ImageInfo.SIZE || offset + length > image.capacity()) {
+            throw new IOException(String.format("Cannot read %d sectors from cylinder %d, head %d, sector %d", count, cylinder, head, sector));
+        }
+
+        ByteBuffer view = image.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
     public Pair<TrackInfo, Integer> getTrackAndOffset(int cylinder, int head, int sector) {
         TrackInfo track;
         int offset;
@@ -124,13 +124,17 @@ public class CromixTime {
     }
 
     public static CromixTime from(byte[] raw) {
+        return from(raw, 0);
+    }
+
+    public static CromixTime from(byte[] raw, int offset) {
         CromixTime ct = new CromixTime();
-        ct.year = raw[YEAR];
-        ct.month = raw[MONTH];
-        ct.day = raw[DAY];
-        ct.hour = raw[HOUR];
-        ct.minute = raw[MINUTE];
-        ct.second = raw[SECOND];
+        ct.year = raw[offset + YEAR];
+        ct.month = raw[offset + MONTH];
+        ct.day = raw[offset + DAY];
+        ct.hour = raw[offset + HOUR];
+        ct.minute = raw[offset + MINUTE];
+        ct.second = raw[offset + SECOND];
         return ct;
     }
 
@@ -0,0 +1,8 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+/**
+ * The block pointers of an inode, the direct blocks followed by the single, double and triple indirect blocks.
+ */
+public interface BlockMap {
+    int getBlockNumber(int blockIndex);
+}
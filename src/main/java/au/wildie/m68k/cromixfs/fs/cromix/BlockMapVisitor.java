@@ -0,0 +1,20 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+public interface BlockMapVisitor {
+    void visitDataBlock(int blockNumber);
+
+    /**
+     * A pointer block, level is the number of pointer blocks between it and the data blocks, inclusive. The single
+     * indirect block is level 1, the double indirect block level 2 and the triple indirect block level 3.
+     */
+    default void visitPointerBlock(int blockNumber, int level) {
+    }
+
+    /**
+     * A pointer block with the block as it was read from the disk, or null when the walk is through the write back
+     * cache. The block is only valid until the visit returns.
+     */
+    default void visitPointerBlock(int blockNumber, int level, byte[] block) {
+        visitPointerBlock(blockNumber, level);
+    }
+}
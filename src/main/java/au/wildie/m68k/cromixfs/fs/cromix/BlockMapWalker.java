@@ -0,0 +1,72 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+
+import java.io.IOException;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
+import static au.wildie.m68k.cromixfs.fs.cromix.PointerBlock.BLOCK_POINTER_COUNT;
+
+/**
+ * Walks the block map of an inode, the direct blocks then the single, double and triple indirect blocks, depth
+ * first in file order. Pointer blocks read from the disk are decoded into one buffer per level, so a walk does not
+ * allocate. A walker is not thread safe.
+ */
+public class BlockMapWalker {
+    private final PointerReader reader;
+
+    public BlockMapWalker(DiskInterface disk) {
+        int[][] buffers = new int[INDIRECT_3_BLOCK - INDIRECT_1_BLOCK + 2][BLOCK_POINTER_COUNT];
+        reader = (blockNumber, level, visitor) -> {
+            byte[] block;
+            try {
+                block = disk.getBlock(blockNumber);
+            } catch (IOException e) {
+                throw new BlockUnavailableException(blockNumber, e);
+            }
+            visitor.visitPointerBlock(blockNumber, level, block);
+            return PointerBlock.readPointers(block, buffers[level]);
+        };
+    }
+
+    /**
+     * Walk through the write back cache, so pointer blocks that have not been committed are seen.
+     */
+    public BlockMapWalker(WriteBackCache writeBack) {
+        reader = (blockNumber, level, visitor) -> {
+            visitor.visitPointerBlock(blockNumber, level, null);
+            return writeBack.getPointerBlock(blockNumber).getPointers();
+        };
+    }
+
+    public void walk(BlockMap inode, BlockMapVisitor visitor) {
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            if (inode.getBlockNumber(i) != 0) {
+                visitor.visitDataBlock(inode.getBlockNumber(i));
+            }
+        }
+        walk(inode.getBlockNumber(INDIRECT_1_BLOCK), 1, visitor);
+        walk(inode.getBlockNumber(INDIRECT_2_BLOCK), 2, visitor);
+        walk(inode.getBlockNumber(INDIRECT_3_BLOCK), 3, visitor);
+    }
+
+    private void walk(int blockNumber, int level, BlockMapVisitor visitor) {
+        if (blockNumber == 0) {
+            return;
+        }
+        int[] pointers = reader.read(blockNumber, level, visitor);
+        for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
+            if (pointers[i] != 0) {
+                if (level == 1) {
+                    visitor.visitDataBlock(pointers[i]);
+                } else {
+                    walk(pointers[i], level - 1, visitor);
+                }
+            }
+        }
+    }
+
+    private interface PointerReader {
+        int[] read(int blockNumber, int level, BlockMapVisitor visitor);
+    }
+}
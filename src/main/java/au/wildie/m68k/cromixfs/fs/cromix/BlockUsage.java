@@ -1,61 +1,194 @@
 package au.wildie.m68k.cromixfs.fs.cromix;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-import lombok.ToString;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-@Getter
-@ToString
-@RequiredArgsConstructor
+/**
+ * How each data block is used, held as one bit plane per use. The counts are taken from the planes a word at a time
+ * in a single pass, when they are first asked for after a change. Words are updated atomically, so the walks of
+ * several ranges of inodes can record into the same planes.
+ */
 public class BlockUsage {
-    private List<BlockUsageItem> blocks;
-    private int firstDataBlock;
+    private static final int FILE = 0;
+    private static final int DIRECTORY = 1;
+    private static final int ON_FREE_LIST = 2;
+
+    @Getter
+    private final int firstDataBlock;
+    private final int dataBlockCount;
+    private final AtomicLongArray[] planes;
+
+    private boolean counted;
+    private int fileBlockCount;
+    private int directoryBlockCount;
+    private int onFreeListBlockCount;
+    private int orphanedBlockCount;
+    private int duplicateBlockCount;
 
     public BlockUsage(SuperBlock superBlock) {
-        blocks = new ArrayList<>(superBlock.getDataBlockCount());
         firstDataBlock = superBlock.getFirstDataBlock();
-
-        for (int i = 0; i < superBlock.getDataBlockCount(); i++) {
-            blocks.add(new BlockUsageItem(firstDataBlock + i));
+        dataBlockCount = superBlock.getDataBlockCount();
+        planes = new AtomicLongArray[3];
+        for (int plane = 0; plane < planes.length; plane++) {
+            planes[plane] = new AtomicLongArray((dataBlockCount + 63) >>> 6);
         }
     }
 
     public void setDirectory(int blockNumber) {
-        blocks.get(blockNumber - firstDataBlock).setDirectory();
+        set(DIRECTORY, blockNumber);
     }
 
     public void setFile(int blockNumber) {
-        blocks.get(blockNumber - firstDataBlock).setFile();
+        set(FILE, blockNumber);
     }
 
     public void setOnFreeList(int blockNumber) {
-        blocks.get(blockNumber - firstDataBlock).setOnFreeList();
+        set(ON_FREE_LIST, blockNumber);
+    }
+
+    public boolean isFile(int blockNumber) {
+        return get(FILE, blockNumber);
+    }
+
+    public boolean isDirectory(int blockNumber) {
+        return get(DIRECTORY, blockNumber);
+    }
+
+    public boolean isOnFreeList(int blockNumber) {
+        return get(ON_FREE_LIST, blockNumber);
     }
 
-    public List<BlockUsageItem> getOrphanedBlocks() {
-        return blocks.stream().filter(BlockUsageItem::isOrphaned).collect(Collectors.toList());
+    /**
+     * Blocks that are not used by a file or directory and are not on the free list, in block order.
+     */
+    public PrimitiveIterator.OfInt orphanedBlocks() {
+        return new BlockIterator() {
+            @Override
+            protected long word(int i) {
+                return ~(planes[FILE].get(i) | planes[DIRECTORY].get(i) | planes[ON_FREE_LIST].get(i));
+            }
+        };
+    }
+
+    /**
+     * Blocks with more than one use, in block order.
+     */
+    public PrimitiveIterator.OfInt duplicateBlocks() {
+        return new BlockIterator() {
+            @Override
+            protected long word(int i) {
+                return duplicates(planes[FILE].get(i), planes[DIRECTORY].get(i), planes[ON_FREE_LIST].get(i));
+            }
+        };
     }
 
     public int getFileBlockCount() {
-        return (int)blocks.stream().filter(BlockUsageItem::isFile).count();
+        count();
+        return fileBlockCount;
     }
 
     public int getDirectoryBlockCount() {
-        return (int)blocks.stream().filter(BlockUsageItem::isDirectory).count();
+        count();
+        return directoryBlockCount;
     }
 
     public int getOnFreeListBlockCount() {
-        return (int)blocks.stream().filter(BlockUsageItem::isOnFreeList).count();
+        count();
+        return onFreeListBlockCount;
     }
+
     public int getOrphanedBlockCount() {
-        return (int)blocks.stream().filter(BlockUsageItem::isOrphaned).count();
+        count();
+        return orphanedBlockCount;
     }
 
     public int getDuplicateBlockCount() {
-        return (int)blocks.stream().filter(BlockUsageItem::isDuplicate).count();
+        count();
+        return duplicateBlockCount;
+    }
+
+    private void count() {
+        if (counted) {
+            return;
+        }
+        fileBlockCount = 0;
+        directoryBlockCount = 0;
+        onFreeListBlockCount = 0;
+        orphanedBlockCount = 0;
+        duplicateBlockCount = 0;
+        for (int i = 0; i < planes[FILE].length(); i++) {
+            long file = planes[FILE].get(i);
+            long directory = planes[DIRECTORY].get(i);
+            long onFreeList = planes[ON_FREE_LIST].get(i);
+            fileBlockCount += Long.bitCount(file);
+            directoryBlockCount += Long.bitCount(directory);
+            onFreeListBlockCount += Long.bitCount(onFreeList);
+            orphanedBlockCount += Long.bitCount(~(file | directory | onFreeList) & mask(i));
+            duplicateBlockCount += Long.bitCount(duplicates(file, directory, onFreeList));
+        }
+        counted = true;
+    }
+
+    private void set(int plane, int blockNumber) {
+        int index = getIndex(blockNumber);
+        AtomicLongArray words = planes[plane];
+        long bit = 1L << index;
+        long word;
+        do {
+            word = words.get(index >>> 6);
+        } while ((word & bit) == 0 && !words.compareAndSet(index >>> 6, word, word | bit));
+        counted = false;
+    }
+
+    private boolean get(int plane, int blockNumber) {
+        int index = getIndex(blockNumber);
+        return (planes[plane].get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private int getIndex(int blockNumber) {
+        int index = blockNumber - firstDataBlock;
+        if (index < 0 || index >= dataBlockCount) {
+            throw new IndexOutOfBoundsException(String.format("Block %d is not a data block", blockNumber));
+        }
+        return index;
+    }
+
+    // The bits of the word that are data blocks, the last word may be partly used
+    private long mask(int i) {
+        int bits = dataBlockCount - (i << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private static long duplicates(long file, long directory, long onFreeList) {
+        return (file & directory) | (file & onFreeList) | (directory & onFreeList);
+    }
+
+    private abstract class BlockIterator implements PrimitiveIterator.OfInt {
+        private int wordIndex = -1;
+        private long bits;
+
+        protected abstract long word(int i);
+
+        @Override
+        public boolean hasNext() {
+            while (bits == 0 && wordIndex + 1 < planes[FILE].length()) {
+                wordIndex++;
+                bits = word(wordIndex) & mask(wordIndex);
+            }
+            return bits != 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int bit = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            return firstDataBlock + (wordIndex << 6) + bit;
+        }
     }
 }
@@ -1,15 +1,29 @@
 package au.wildie.m68k.cromixfs.fs.cromix;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.SynchronizedDisk;
+import lombok.Getter;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryBlock.DIRECTORY_ENTRIES;
 import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntry.DIRECTORY_ENTRY_LENGTH;
 import static au.wildie.m68k.cromixfs.fs.cromix.Inode.ALLOCATED;
 import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INDIRECT_1_BLOCK;
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INODES_PER_BLOCK;
 import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.*;
+import static au.wildie.m68k.cromixfs.fs.cromix.PointerBlock.BLOCK_POINTER_COUNT;
+import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_INODE_LIST_SIZE;
 
 public class Check {
     public static final int FLAG_DIRECTORY         = 0x01;            /* It is directory               */
@@ -25,11 +39,45 @@ public class Check {
     private final SuperBlock superBlock;
     private final InodeManager inodeManager;
     private final DiskInterface disk;
+    private final ForkJoinPool pool;
+    private byte[][] inodeBlocks;
+    private CheckCache previous;
+    private CheckCache cache;
+    private CheckCache.Region[] reused;
 
     public Check(SuperBlock superBlock, InodeManager inodeManager, DiskInterface disk) {
+        this(superBlock, inodeManager, disk, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * The inode table is checked in ranges of inode blocks by the tasks of the pool. Results are merged in inode
+     * order, so the output is the same whatever the parallelism.
+     */
+    public Check(SuperBlock superBlock, InodeManager inodeManager, DiskInterface disk, ForkJoinPool pool) {
         this.superBlock = superBlock;
         this.inodeManager = inodeManager;
-        this.disk = disk;
+        this.disk = new SynchronizedDisk(disk);
+        this.pool = pool;
+    }
+
+    /**
+     * Keep what is read from each inode block, and reuse the results of an earlier check, if any, for the inode
+     * blocks that have not changed. Must be called before the first pass.
+     */
+    public void useCache(CheckCache previous) {
+        cache = new CheckCache(superBlock, inodeManager.getAllInodes().size() / INODES_PER_BLOCK, inodeManager.getLastInodeNumber());
+        this.previous = previous != null && previous.isCompatible(cache) ? previous : null;
+    }
+
+    public CheckCache getCache() {
+        return cache;
+    }
+
+    /**
+     * The number of inode blocks whose results were reused.
+     */
+    public int getReusedCount() {
+        return reused == null ? 0 : (int) Arrays.stream(reused).filter(Objects::nonNull).count();
     }
 
     public void passOne() {
@@ -40,158 +88,559 @@ public class Check {
         itables.get(0).cntlinks = 1;
         itables.get(0).parent = 1;
 
-        for (int i = 0; i < inodeManager.getAllInodes().size(); i++) {
-            Inode inode = inodeManager.getAllInodes().get(i);
+        // Inodes and directories are read in parallel, the links are then counted in inode order
+        for (InodeSummary summary : forEachRange(this::summarise)) {
+            link(summary);
+        }
+    }
+
+    public int passTwo(PrintStream out) {
+        return print(out, forEachRange((from, to) -> {
+            RangeReport report = new RangeReport();
+            InodeView inode = new InodeView();
+            for (int i = from; i < to; i++) {
+                Itable itable = itables.get(i);
+                wrap(inode, i);
+
+                if ((itable.flags & FLAG_BAD_INODE_NUMBER) != 0) {
+                    if ((itable.flags & FLAG_ALLOCATED) != 0 || itable.cntlinks != 0 || itable.nlinks != 0) {
+                        report.error("Inode %6d, bad inode number in inode\n", inode.getNumber());
+                    }
+                }
+                if ((itable.flags & FLAG_ALLOCATED) != 0) {
+                    if (itable.cntlinks == 0) {
+                        report.error("Inode %6d, allocated inode with 0 links\n", inode.getNumber());
+                    }
+
+                    if ((itable.flags & FLAG_DIRECTORY) != 0) {
+                        if ((itable.flags & FLAG_BAD_COUNT) != 0) {
+                            report.error("Inode %6d, bad directory entry count, expected %d, actual %d\n", inode.getNumber(), itable.entries, inode.getDirectoryEntryCount());
+                        }
+                        if ((itable.flags & FLAG_MULTIPLE) != 0) {
+                            report.error("Inode %6d, directory with more than one parent\n", inode.getNumber());
+                        }
+                        if ((itable.flags & FLAG_WRONG_PARENT) != 0) {
+                            report.error("Inode %6d, directory with wrong parent\n", inode.getNumber());
+                        }
+                    }
+
+                    if (itable.nlinks != itable.cntlinks) {
+                        report.error("Inode %6d, bad link count %d, should be %d\n", inode.getNumber(), itable.nlinks, itable.cntlinks);
+                    }
+                    if ((itable.flags & FLAG_GREATER_255_LINKS) != 0) {
+                        report.error("Inode %6d, more than 255 links\n", inode.getNumber());
+                    }
+                } else if (itable.cntlinks != 0) {
+                    report.error("Inode %6d, unallocated inode with %d links\n", inode.getNumber(), itable.cntlinks);
+                }
+            }
+            return report;
+        }));
+    }
+
+    public int fileCheck(PrintStream out) {
+        return walk(out, true).getFileErrors();
+    }
+
+    /**
+     * Walk the block map of every inode once. The blocks are recorded in the block usage, the inodes are counted and,
+     * when checkFiles is set, the data and used block counts of each file are checked.
+     */
+    public Walk walk(PrintStream out, boolean checkFiles) {
+        Walk walk = new Walk(superBlock);
+        List<RangeReport> reports = forEachRange((from, to) -> {
+            RangeReport report = new RangeReport(superBlock, walk.blockUsage);
+            InodeView inode = new InodeView();
+            BlockMapWalker walker = new BlockMapWalker(disk);
+            FileBlocks fileBlocks = new FileBlocks(report);
+            CheckCache.Region region = null;
+            try {
+                for (int i = from; i < to; i++) {
+                    if (region != null && i % INODES_PER_BLOCK == 0 && report.usageFailure == null) {
+                        region.walked();
+                    }
+                    region = getRegion(i);
+                    wrap(inode, i);
+                    report.inodeStats.countUsage(inode.getType());
+
+                    if (inode.getType() == CHARACTER_DEVICE || inode.getType() == BLOCK_DEVICE) {
+                        report.devices++;
+                    }
+
+                    if (inode.getType() == DIRECTORY) {
+                        report.directories++;
+                        for (int j = 0; j < INDIRECT_1_BLOCK; j++) {
+                            if (inode.getBlockNumber(j) != 0) {
+                                report.setDirectory(inode.getBlockNumber(j));
+                            }
+                        }
+                    }
+
+                    if (inode.getType() == FILE || inode.getType() == SHARED_TEXT) {
+                        report.files++;
+                        int slot = i % INODES_PER_BLOCK;
+                        if (isReused(i)) {
+                            fileBlocks.replay(region.getFileBlocks(slot), region.getDataBlockCount(slot));
+                        } else {
+                            fileBlocks.start(region);
+                            walker.walk(inode, fileBlocks);
+                            if (region != null) {
+                                region.setFileBlocks(slot, fileBlocks.getBlocks(), fileBlocks.dataBlocks);
+                            }
+                        }
+                        if (checkFiles) {
+                            checkFile(inode, fileBlocks, report);
+                        }
+                    }
+                }
+                if (region != null && report.usageFailure == null) {
+                    region.walked();
+                }
+            } catch (RuntimeException e) {
+                report.failure = e;
+            }
+            if (region != null && (report.failure != null || report.usageFailure != null)) {
+                region.failed();
+            }
+            return report;
+        });
+
+        int errors = 0;
+        RuntimeException usageFailure = null;
+        for (RangeReport report : reports) {
+            out.print(report.text);
+            errors += report.errors;
+            if (report.failure != null) {
+                throw report.failure;
+            }
+            if (usageFailure == null) {
+                usageFailure = report.usageFailure;
+            }
+            walk.inodeStats.add(report.inodeStats);
+            walk.files += report.files;
+            walk.directories += report.directories;
+            walk.devices += report.devices;
+        }
+        walk.fileErrors = checkFiles ? errors : null;
+
+        // The free list entries are looked up by position, an inode holding the wrong number is reported above
+        InodeView freeInode = new InodeView();
+        for (int i = 0; i < FREE_INODE_LIST_SIZE; i++) {
+            int inodeNumber = superBlock.getFreeInodeList()[i];
+            if (inodeNumber < 0 || inodeNumber > inodeManager.getAllInodes().size()) {
+                out.printf("Free inode list, inode %d is out of range\n", inodeNumber);
+            } else if (inodeNumber != 0) {
+                wrap(freeInode, inodeNumber - 1);
+                walk.inodeStats.countFreeList(freeInode.getType());
+            }
+        }
+
+        if (usageFailure != null) {
+            throw usageFailure;
+        }
+        return walk;
+    }
+
+    private void checkFile(InodeView inode, FileBlocks fileBlocks, RangeReport report) {
+        int expectedBlocks = inode.getFileSize() / superBlock.getBlockSize()
+                           + ((inode.getFileSize() % superBlock.getBlockSize()) != 0 ? 1 : 0);
+
+        if (fileBlocks.dataBlocks > expectedBlocks) {
+            report.error("Inode %6d, too many data blacks, counted %d, should be %d\n", inode.getNumber(), fileBlocks.dataBlocks, expectedBlocks);
+        }
+        if (fileBlocks.dataBlocks < expectedBlocks) {
+            report.error("Inode %6d, missing data blacks, counted %d, should be %d\n", inode.getNumber(), fileBlocks.dataBlocks, expectedBlocks);
+        }
+
+        int countedUsedBlocks = fileBlocks.dataBlocks + fileBlocks.pointerBlocks;
+        if (countedUsedBlocks != inode.getUsedBlockCount()) {
+            report.error("Inode %6d, used block count mismatch, counted %d, should be %d\n", inode.getNumber(), countedUsedBlocks, inode.getUsedBlockCount());
+        }
+    }
+
+    /**
+     * Read the inodes in the range, and the entries of the directories among them.
+     */
+    private InodeSummary summarise(int from, int to) {
+        InodeSummary summary = new InodeSummary(from, to);
+        InodeView inode = new InodeView();
+        DirectoryEntryView entry = new DirectoryEntryView();
+        CheckCache.Region region = null;
+        try {
+            for (int i = from; i < to; i++) {
+                int k = i - from;
+                if (region != null && i % INODES_PER_BLOCK == 0) {
+                    region.summarised();
+                }
+                region = getRegion(i);
+                wrap(inode, i);
+                summary.number[k] = inode.getNumber();
+                summary.parent[k] = inode.getParent();
+                summary.links[k] = inode.getLinks();
+                summary.type[k] = inode.getType();
+                summary.directoryEntryCount[k] = inode.getDirectoryEntryCount();
+                summary.scanned = k + 1;
+                if (inode.getType() != DIRECTORY) {
+                    continue;
+                }
+                if (isReused(i)) {
+                    summary.children[k] = region.getChildren(i % INODES_PER_BLOCK);
+                    continue;
+                }
+
+                int[] children = new int[INDIRECT_1_BLOCK * DIRECTORY_ENTRIES];
+                int childCount = 0;
+                for (int j = 0; j < INDIRECT_1_BLOCK; j++) {
+                    if (inode.getBlockNumber(j) == 0) {
+                        continue;
+                    }
+                    byte[] directoryBlock = getBlock(inode.getBlockNumber(j));
+                    if (region != null) {
+                        region.depend(inode.getBlockNumber(j), directoryBlock);
+                    }
+                    for (int e = 0; e < DIRECTORY_ENTRIES; e++) {
+                        entry.wrap(directoryBlock, e);
+                        int dirExtent = j * superBlock.getBlockSize() + e * DIRECTORY_ENTRY_LENGTH;
+                        if (dirExtent < inode.getFileSize() && entry.isAllocated()) {
+                            if (entry.getInodeNumber() == 0 || entry.getInodeNumber() > inodeManager.getLastInodeNumber()) {
+                                throw new CheckException(String.format("Directory %s, inode %d is out of bounds\n", entry.getName(), entry.getInodeNumber()));
+                            }
+                            children[childCount++] = entry.getInodeNumber();
+                        }
+                    }
+                }
+                summary.children[k] = Arrays.copyOf(children, childCount);
+                if (region != null) {
+                    region.setChildren(i % INODES_PER_BLOCK, summary.children[k]);
+                }
+            }
+            if (region != null) {
+                region.summarised();
+            }
+        } catch (RuntimeException e) {
+            summary.failure = e;
+            if (region != null) {
+                region.failed();
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Count the links of the summarised inodes, in inode order as the parent of a directory is only known once the
+     * directory holding it has been read.
+     */
+    private void link(InodeSummary summary) {
+        for (int k = 0; k < summary.scanned; k++) {
+            int i = summary.from + k;
             Itable itable = itables.get(i);
 
             if (itable.parent != 0) {
-                if (itable.parent != inode.getParent()) {
+                if (itable.parent != summary.parent[k]) {
                     itable.flags |= FLAG_WRONG_PARENT;
                 }
             } else {
-                itable.parent = inode.getParent();
+                itable.parent = summary.parent[k];
                 itable.flags |= FLAG_CHILD;
             }
 
-            itable.nlinks = inode.getLinks();
+            itable.nlinks = summary.links[k];
 
             /* Verify the inode number      */
             /* recorded in the inode        */
-            if (inode.getNumber() != (i + 1)) {
+            if (summary.number[k] != (i + 1)) {
                 itable.flags |= FLAG_BAD_INODE_NUMBER;
             }
 
             /* If inode is not allocated    */
             /* that is it, else say it is   */
             /* allocated.                   */
-            if (!ALLOCATED.contains(inode.getType())) {
+            if (!ALLOCATED.contains(summary.type[k])) {
                 continue;
             }
             itable.flags |= FLAG_ALLOCATED;
 
             /* If it is not directory that  */
             /* is it.                       */
-            if (inode.getType() != DIRECTORY) {
+            if (summary.type[k] != DIRECTORY) {
                 continue;
             }
 
             /* Say it is directoy inode     */
             itable.flags |= FLAG_DIRECTORY;
 
-            /* Read all directory entries   */
-            /* and do further check for     */
-            /* each allocated entry.        */
-            for (int j = 0; j < INDIRECT_1_BLOCK; j++) {
-                if (inode.getBlocks()[j] == 0) {
-                    continue;
-                }
-                DirectoryBlock directoryBlock = DirectoryBlock.from(disk, inode.getBlocks()[j]);
-                for (DirectoryEntry entry : directoryBlock.getEntries()) {
-                    int dirExtent = j * superBlock.getBlockSize() + entry.getIndex() * DIRECTORY_ENTRY_LENGTH;
-                    if (dirExtent < inode.getFileSize()) {
-                        if (entry.getStatus() == DirectoryEntryStatus.ALLOCATED) {
-                            if (entry.getInodeNumber() == 0 || entry.getInodeNumber() > inodeManager.getLastInodeNumber()) {
-                                throw new CheckException(String.format("Directory %s, inode %d is out of bounds\n", entry.getName(), entry.getInodeNumber()));
-                            }
-                            itable.entries++;
-                            Itable itabc = itables.get(entry.getInodeNumber() - 1);
-                            itabc.cntlinks++;
-                            if ((itabc.flags & FLAG_CHILD) != 0) {
-                                itabc.flags &= ~FLAG_CHILD;
-                                if (itabc.parent != inode.getNumber()) {
-                                    itabc.flags |= FLAG_WRONG_PARENT;
-                                    itabc.parent = inode.getNumber();
-                                }
-                            } else if (itabc.parent == 0) {
-                                itabc.parent = inode.getNumber();
-                            } else if (itabc.parent != inode.getNumber()) {
-                                itabc.flags |= FLAG_MULTIPLE;
-                            }
-                        }
+            /* Count each allocated entry   */
+            /* of the directory.            */
+            if (summary.children[k] == null) {
+                break;
+            }
+            for (int child : summary.children[k]) {
+                itable.entries++;
+                Itable itabc = itables.get(child - 1);
+                itabc.cntlinks++;
+                if ((itabc.flags & FLAG_CHILD) != 0) {
+                    itabc.flags &= ~FLAG_CHILD;
+                    if (itabc.parent != summary.number[k]) {
+                        itabc.flags |= FLAG_WRONG_PARENT;
+                        itabc.parent = summary.number[k];
                     }
+                } else if (itabc.parent == 0) {
+                    itabc.parent = summary.number[k];
+                } else if (itabc.parent != summary.number[k]) {
+                    itabc.flags |= FLAG_MULTIPLE;
                 }
             }
-            if (inode.getDirectoryEntryCount() != itable.entries) {
+            if (summary.directoryEntryCount[k] != itable.entries) {
                 itable.flags |= FLAG_BAD_COUNT;
             }
         }
+        if (summary.failure != null) {
+            throw summary.failure;
+        }
     }
 
-    public int passTwo(PrintStream out) {
+    private int print(PrintStream out, List<RangeReport> reports) {
         int errors = 0;
+        for (RangeReport report : reports) {
+            out.print(report.text);
+            errors += report.errors;
+            if (report.failure != null) {
+                throw report.failure;
+            }
+        }
+        return errors;
+    }
 
-        for (int i = 0; i < inodeManager.getAllInodes().size(); i++) {
-            Inode inode = inodeManager.getAllInodes().get(i);
-            Itable itable = itables.get(i);
+    /**
+     * Run the task over ranges of the inode table, the results are in inode order.
+     */
+    private <T> List<T> forEachRange(RangeTask<T> task) {
+        int inodeBlockCount = getInodeBlocks().length;
+        int ranges = Math.min(inodeBlockCount, pool.getParallelism() * 4);
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int r = 0; r < ranges; r++) {
+            int from = inodeBlockCount * r / ranges * INODES_PER_BLOCK;
+            int to = inodeBlockCount * (r + 1) / ranges * INODES_PER_BLOCK;
+            tasks.add(() -> task.run(from, to));
+        }
 
-            if ((itable.flags & FLAG_BAD_INODE_NUMBER) != 0) {
-                if ((itable.flags & FLAG_ALLOCATED) != 0 || itable.cntlinks != 0 || itable.nlinks != 0) {
-                    out.printf("Inode %6d, bad inode number in inode\n", inode.getNumber());
-                    errors++;
-                }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> result : pool.invokeAll(tasks)) {
+                results.add(result.get());
             }
-            if ((itable.flags & FLAG_ALLOCATED) != 0) {
-                if (itable.cntlinks == 0) {
-                    out.printf("Inode %6d, allocated inode with 0 links\n", inode.getNumber());
-                    errors++;
-                }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CheckException("Check interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new CheckException(String.format("Check failed, %s", e.getCause()));
+        }
+        return results;
+    }
 
-                if ((itable.flags & FLAG_DIRECTORY) != 0) {
-                    if ((itable.flags & FLAG_BAD_COUNT) != 0) {
-                        out.printf("Inode %6d, bad directory entry count, expected %d, actual %d\n", inode.getNumber(), itable.entries, inode.getDirectoryEntryCount());
-                        errors++;
-                    }
-                    if ((itable.flags & FLAG_MULTIPLE) != 0) {
-                        out.printf("Inode %6d, directory with more than one parent\n", inode.getNumber());
-                        errors++;
-                    }
-                    if ((itable.flags & FLAG_WRONG_PARENT) != 0) {
-                        out.printf("Inode %6d, directory with wrong parent\n", inode.getNumber());
-                        errors++;
+    private byte[][] getInodeBlocks() {
+        if (inodeBlocks == null) {
+            inodeBlocks = new byte[inodeManager.getAllInodes().size() / INODES_PER_BLOCK][];
+            for (int i = 0; i < inodeBlocks.length; i++) {
+                inodeBlocks[i] = getBlock(superBlock.getFirstInodeBlock() + i);
+            }
+            if (previous != null) {
+                reused = previous.match(inodeBlocks, this::getBlock);
+                for (int i = 0; i < reused.length; i++) {
+                    if (reused[i] != null) {
+                        cache.set(i, reused[i]);
                     }
                 }
+            }
+        }
+        return inodeBlocks;
+    }
 
-                if (itable.nlinks != itable.cntlinks) {
-                    out.printf("Inode %6d, bad link count %d, should be %d\n", inode.getNumber(), itable.nlinks, itable.cntlinks);
-                    errors++;
-                }
-                if ((itable.flags & FLAG_GREATER_255_LINKS) != 0) {
-                    out.printf("Inode %6d, more than 255 links\n", inode.getNumber());
-                    errors++;
-                }
-            } else if (itable.cntlinks != 0) {
-                out.printf("Inode %6d, unallocated inode with %d links\n", inode.getNumber(), itable.cntlinks);
-                errors++;
+    // The region of the inode block holding the inode, null when there is no cache
+    private CheckCache.Region getRegion(int index) {
+        if (cache == null) {
+            return null;
+        }
+        int blockIndex = index / INODES_PER_BLOCK;
+        if (cache.get(blockIndex) == null) {
+            cache.set(blockIndex, new CheckCache.Region(inodeBlocks[blockIndex]));
+        }
+        return cache.get(blockIndex);
+    }
+
+    private boolean isReused(int index) {
+        return reused != null && reused[index / INODES_PER_BLOCK] != null;
+    }
+
+    private void wrap(InodeView inode, int index) {
+        inode.wrap(inodeBlocks[index / INODES_PER_BLOCK], index % INODES_PER_BLOCK);
+    }
+
+    private byte[] getBlock(int blockNumber) {
+        try {
+            return disk.getBlock(blockNumber);
+        } catch (IOException e) {
+            throw new BlockUnavailableException(blockNumber, e);
+        }
+    }
+
+    private interface RangeTask<T> {
+        T run(int from, int to);
+    }
+
+    private static class InodeSummary {
+        final int from;
+        final int[] number;
+        final int[] parent;
+        final int[] links;
+        final InodeType[] type;
+        final int[] directoryEntryCount;
+        final int[][] children;
+        int scanned;
+        RuntimeException failure;
+
+        InodeSummary(int from, int to) {
+            this.from = from;
+            number = new int[to - from];
+            parent = new int[to - from];
+            links = new int[to - from];
+            type = new InodeType[to - from];
+            directoryEntryCount = new int[to - from];
+            children = new int[to - from][];
+        }
+    }
+
+    private static class RangeReport {
+        final StringBuilder text = new StringBuilder();
+        final Formatter formatter = new Formatter(text);
+        int errors;
+        RuntimeException failure;
+
+        BlockUsage blockUsage;
+        InodeStats inodeStats;
+        int files;
+        int directories;
+        int devices;
+        // A block number outside the data blocks, raised once the files have been checked
+        RuntimeException usageFailure;
+
+        RangeReport() {
+        }
+
+        // The block usage is shared by the ranges
+        RangeReport(SuperBlock superBlock, BlockUsage blockUsage) {
+            this.blockUsage = blockUsage;
+            inodeStats = new InodeStats(superBlock);
+        }
+
+        void error(String format, Object... args) {
+            formatter.format(format, args);
+            errors++;
+        }
+
+        void setFile(int blockNumber) {
+            try {
+                blockUsage.setFile(blockNumber);
+            } catch (IndexOutOfBoundsException e) {
+                usageFailure = usageFailure == null ? e : usageFailure;
+            }
+        }
+
+        void setDirectory(int blockNumber) {
+            try {
+                blockUsage.setDirectory(blockNumber);
+            } catch (IndexOutOfBoundsException e) {
+                usageFailure = usageFailure == null ? e : usageFailure;
             }
         }
-        return errors;
     }
 
-    public int fileCheck(PrintStream out) {
-        int errors = 0;
-        for (Inode inode : inodeManager.getAllInodes()) {
-            if (inode.getType() == FILE || inode.getType() == SHARED_TEXT) {
-                int expectedBlocks = inode.getFileSize() / superBlock.getBlockSize()
-                                   + ((inode.getFileSize() % superBlock.getBlockSize()) != 0 ? 1 : 0);
-
-                List<Integer> dataBlocks = inode.getDataBlocks(disk);
-                if (dataBlocks.size() > expectedBlocks) {
-                    out.printf("Inode %6d, too many data blacks, counted %d, should be %d\n", inode.getNumber(), dataBlocks.size(), expectedBlocks);
-                    errors++;
-                }
-                if (dataBlocks.size() < expectedBlocks) {
-                    out.printf("Inode %6d, missing data blacks, counted %d, should be %d\n", inode.getNumber(), dataBlocks.size(), expectedBlocks);
-                    errors++;
-                }
+    private class FileBlocks implements BlockMapVisitor {
+        final RangeReport report;
+        int dataBlocks;
+        int pointerBlocks;
+        // The blocks are kept, data blocks first, when there is a region to record them in
+        CheckCache.Region region;
+        int[] data = new int[BLOCK_POINTER_COUNT];
+        int[] pointers = new int[BLOCK_POINTER_COUNT];
+
+        FileBlocks(RangeReport report) {
+            this.report = report;
+        }
 
-                int countedUsedBlocks = inode.countUsedBlocks(disk);
-                if (countedUsedBlocks != inode.getUsedBlockCount()) {
-                    out.printf("Inode %6d, used block count mismatch, counted %d, should be %d\n", inode.getNumber(), countedUsedBlocks, inode.getUsedBlockCount());
-                    errors++;
+        void start(CheckCache.Region region) {
+            this.region = region;
+            dataBlocks = 0;
+            pointerBlocks = 0;
+        }
+
+        void replay(int[] blocks, int dataBlockCount) {
+            start(null);
+            for (int i = 0; i < blocks.length; i++) {
+                if (i < dataBlockCount) {
+                    visitDataBlock(blocks[i]);
+                } else {
+                    visitPointerBlock(blocks[i], 0, null);
                 }
             }
         }
-        return errors;
+
+        int[] getBlocks() {
+            int[] blocks = Arrays.copyOf(data, dataBlocks + pointerBlocks);
+            System.arraycopy(pointers, 0, blocks, dataBlocks, pointerBlocks);
+            return blocks;
+        }
+
+        @Override
+        public void visitDataBlock(int blockNumber) {
+            if (region != null) {
+                data = add(data, dataBlocks, blockNumber);
+            }
+            dataBlocks++;
+            report.setFile(blockNumber);
+        }
+
+        @Override
+        public void visitPointerBlock(int blockNumber, int level, byte[] block) {
+            if (region != null) {
+                pointers = add(pointers, pointerBlocks, blockNumber);
+                region.depend(blockNumber, block);
+            }
+            pointerBlocks++;
+            report.setFile(blockNumber);
+        }
+
+        private int[] add(int[] blocks, int count, int blockNumber) {
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+            }
+            blocks[count] = blockNumber;
+            return blocks;
+        }
+    }
+
+    /**
+     * The results of a walk of the inodes.
+     */
+    @Getter
+    public static class Walk {
+        private final BlockUsage blockUsage;
+        private final InodeStats inodeStats;
+        private int files;
+        private int directories;
+        private int devices;
+        private Integer fileErrors;
+
+        Walk(SuperBlock superBlock) {
+            blockUsage = new BlockUsage(superBlock);
+            inodeStats = new InodeStats(superBlock);
+        }
     }
 
     public static class Itable {
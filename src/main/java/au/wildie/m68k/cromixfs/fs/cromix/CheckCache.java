@@ -0,0 +1,292 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INODES_PER_BLOCK;
+
+/**
+ * What a check read from each inode block, kept between checks of the same image. The result for an inode block
+ * holds the hash of the inode block, the hashes of the directory and pointer blocks read for its inodes, the entries
+ * of its directories and the blocks of its files. A later check reuses the result of an inode block when none of
+ * those blocks have changed.
+ */
+public class CheckCache {
+    private static final int MAGIC = 0x43434b31;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int firstInodeBlock;
+    private final int firstDataBlock;
+    private final int lastInodeNumber;
+    private final Region[] regions;
+
+    public CheckCache(SuperBlock superBlock, int inodeBlockCount, int lastInodeNumber) {
+        this(superBlock.getBlockSize(), superBlock.getBlockCount(), superBlock.getFirstInodeBlock(),
+                superBlock.getFirstDataBlock(), lastInodeNumber, inodeBlockCount);
+    }
+
+    private CheckCache(int blockSize, int blockCount, int firstInodeBlock, int firstDataBlock, int lastInodeNumber, int inodeBlockCount) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.firstInodeBlock = firstInodeBlock;
+        this.firstDataBlock = firstDataBlock;
+        this.lastInodeNumber = lastInodeNumber;
+        this.regions = new Region[inodeBlockCount];
+    }
+
+    /**
+     * Read the results of an earlier check, null if there are none or they cannot be read.
+     */
+    public static CheckCache read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            CheckCache cache = new CheckCache(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                cache.regions[index] = Region.read(in);
+            }
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(blockSize);
+            out.writeInt(blockCount);
+            out.writeInt(firstInodeBlock);
+            out.writeInt(firstDataBlock);
+            out.writeInt(lastInodeNumber);
+            out.writeInt(regions.length);
+            out.writeInt(getCompleteCount());
+            for (int i = 0; i < regions.length; i++) {
+                if (regions[i] != null && regions[i].isComplete()) {
+                    out.writeInt(i);
+                    regions[i].write(out);
+                }
+            }
+        }
+    }
+
+    public int getRegionCount() {
+        return regions.length;
+    }
+
+    /**
+     * The number of inode blocks with a result that can be kept.
+     */
+    public int getCompleteCount() {
+        int count = 0;
+        for (Region region : regions) {
+            if (region != null && region.isComplete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether the results were taken from a filesystem of the same layout.
+     */
+    public boolean isCompatible(CheckCache other) {
+        return blockSize == other.blockSize
+            && blockCount == other.blockCount
+            && firstInodeBlock == other.firstInodeBlock
+            && firstDataBlock == other.firstDataBlock
+            && lastInodeNumber == other.lastInodeNumber
+            && regions.length == other.regions.length;
+    }
+
+    /**
+     * The results for the inode blocks that are unchanged, null for the others. The blocks the results were taken
+     * from are hashed once each, in block order.
+     */
+    public Region[] match(byte[][] inodeBlocks, IntFunction<byte[]> blocks) {
+        Region[] matched = new Region[regions.length];
+        Map<Integer, Long> dependencies = new TreeMap<>();
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] != null && regions[i].hash == hash(inodeBlocks[i])) {
+                matched[i] = regions[i];
+                dependencies.putAll(regions[i].dependencies);
+            }
+        }
+
+        Set<Integer> changed = new HashSet<>();
+        for (Map.Entry<Integer, Long> dependency : dependencies.entrySet()) {
+            try {
+                if (hash(blocks.apply(dependency.getKey())) != dependency.getValue()) {
+                    changed.add(dependency.getKey());
+                }
+            } catch (BlockUnavailableException e) {
+                changed.add(dependency.getKey());
+            }
+        }
+
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i] != null && matched[i].dependencies.keySet().stream().anyMatch(changed::contains)) {
+                matched[i] = null;
+            }
+        }
+        return matched;
+    }
+
+    public Region get(int index) {
+        return regions[index];
+    }
+
+    public void set(int index, Region region) {
+        regions[index] = region;
+    }
+
+    public static long hash(byte[] block) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(block)).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new CheckException(String.format("Cannot hash blocks, %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * The result for one inode block. The entries of a directory and the blocks of a file are held by the slot of the
+     * inode in the block, the data blocks of a file come before its pointer blocks.
+     */
+    public static class Region {
+        private final long hash;
+        private final Map<Integer, Long> dependencies = new TreeMap<>();
+        private final int[][] children = new int[INODES_PER_BLOCK][];
+        private final int[][] fileBlocks = new int[INODES_PER_BLOCK][];
+        private final int[] dataBlockCounts = new int[INODES_PER_BLOCK];
+        @Getter
+        private boolean summarised;
+        @Getter
+        private boolean walked;
+        private boolean failed;
+
+        public Region(byte[] inodeBlock) {
+            this(hash(inodeBlock));
+        }
+
+        private Region(long hash) {
+            this.hash = hash;
+        }
+
+        public void depend(int blockNumber, byte[] block) {
+            dependencies.put(blockNumber, hash(block));
+        }
+
+        public int[] getChildren(int slot) {
+            return children[slot];
+        }
+
+        public void setChildren(int slot, int[] children) {
+            this.children[slot] = children;
+        }
+
+        public int[] getFileBlocks(int slot) {
+            return fileBlocks[slot];
+        }
+
+        public int getDataBlockCount(int slot) {
+            return dataBlockCounts[slot];
+        }
+
+        public void setFileBlocks(int slot, int[] blocks, int dataBlockCount) {
+            fileBlocks[slot] = blocks;
+            dataBlockCounts[slot] = dataBlockCount;
+        }
+
+        public void summarised() {
+            summarised = true;
+        }
+
+        public void walked() {
+            walked = true;
+        }
+
+        public void failed() {
+            failed = true;
+        }
+
+        public boolean isComplete() {
+            return summarised && walked && !failed;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(hash);
+            out.writeInt(dependencies.size());
+            for (Map.Entry<Integer, Long> dependency : dependencies.entrySet()) {
+                out.writeInt(dependency.getKey());
+                out.writeLong(dependency.getValue());
+            }
+            for (int slot = 0; slot < INODES_PER_BLOCK; slot++) {
+                writeInts(out, children[slot]);
+                writeInts(out, fileBlocks[slot]);
+                out.writeInt(dataBlockCounts[slot]);
+            }
+        }
+
+        private static Region read(DataInputStream in) throws IOException {
+            Region region = new Region(in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                region.dependencies.put(in.readInt(), in.readLong());
+            }
+            for (int slot = 0; slot < INODES_PER_BLOCK; slot++) {
+                region.children[slot] = readInts(in);
+                region.fileBlocks[slot] = readInts(in);
+                region.dataBlockCounts[slot] = in.readInt();
+            }
+            region.summarised = true;
+            region.walked = true;
+            return region;
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+            if (values == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        private static int[] readInts(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+    }
+}
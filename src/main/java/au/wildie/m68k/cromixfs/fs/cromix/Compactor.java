@@ -0,0 +1,210 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INDIRECT_1_BLOCK;
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INODE_BLOCKS;
+import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.*;
+
+/**
+ * Moves the blocks of the directories and files into one run at the start of the data area, in the order they are
+ * read when the files are extracted: each directory, then the entries in it, with the pointer blocks of a file ahead
+ * of the data blocks they map. Consecutive block numbers follow the track and interleave order of the disk. The
+ * inodes and pointer blocks are rewritten to the new block numbers and every other data block becomes free.
+ */
+public class Compactor {
+    private final SuperBlock superBlock;
+    private final InodeManager inodeManager;
+    private final DiskInterface disk;
+
+    // The block each block moves to, and the block moving to each block, 0 if none
+    private final int[] target;
+    private final int[] source;
+    private final List<Integer> inodes = new ArrayList<>();
+    private final List<Integer> pointerBlocks = new ArrayList<>();
+    private final boolean[] laidOut;
+    private int next;
+
+    @Getter
+    private int movedBlocks;
+
+    public Compactor(SuperBlock superBlock, InodeManager inodeManager, DiskInterface disk) {
+        this.superBlock = superBlock;
+        this.inodeManager = inodeManager;
+        this.disk = disk;
+        this.target = new int[superBlock.getBlockCount()];
+        this.source = new int[superBlock.getBlockCount()];
+        this.laidOut = new boolean[inodeManager.getAllInodes().size() + 1];
+        this.next = superBlock.getFirstDataBlock();
+    }
+
+    /**
+     * Compact the filesystem and commit the changes. Nothing is written unless every block map can be laid out, a
+     * block used twice or outside the data area stops the compaction.
+     */
+    public void compact() {
+        inodeManager.commit();
+
+        layOutDirectory(1);
+        // Inodes that are not in any directory keep their blocks as well
+        for (int number = 1; number < laidOut.length; number++) {
+            layOut(number);
+        }
+
+        move();
+
+        for (int number : inodes) {
+            Inode inode = getInode(number);
+            for (int i = 0; i < INODE_BLOCKS; i++) {
+                if (inode.getBlocks()[i] != 0) {
+                    inode.getBlocks()[i] = target[inode.getBlocks()[i]];
+                }
+            }
+            inodeManager.markDirty(inode);
+        }
+
+        for (int blockNumber : pointerBlocks) {
+            PointerBlock pointerBlock = PointerBlock.from(target[blockNumber], disk);
+            for (int i = 0; i < PointerBlock.BLOCK_POINTER_COUNT; i++) {
+                if (pointerBlock.getPointer(i) != 0) {
+                    pointerBlock.setPointer(i, target[pointerBlock.getPointer(i)]);
+                }
+            }
+            pointerBlock.flush(disk);
+        }
+
+        inodeManager.getFreeBlockList().rebuild(blockNumber -> blockNumber < next);
+        inodeManager.commit();
+    }
+
+    /**
+     * The number of blocks used by the directories and files, they are the first blocks of the data area once the
+     * filesystem has been compacted.
+     */
+    public int getUsedBlocks() {
+        return next - superBlock.getFirstDataBlock();
+    }
+
+    private void layOutDirectory(int number) {
+        if (!layOut(number)) {
+            return;
+        }
+        Inode directory = getInode(number);
+        DirectoryEntryView entry = new DirectoryEntryView();
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            if (directory.getBlockNumber(i) == 0) {
+                continue;
+            }
+            byte[] directoryBlock = getBlock(directory.getBlockNumber(i));
+            for (int j = 0; j < DirectoryBlock.DIRECTORY_ENTRIES; j++) {
+                if (entry.wrap(directoryBlock, j).isAllocated()) {
+                    if (getInode(entry.getInodeNumber()).getType() == DIRECTORY) {
+                        layOutDirectory(entry.getInodeNumber());
+                    } else {
+                        layOut(entry.getInodeNumber());
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean layOut(int number) {
+        if (laidOut[number]) {
+            return false;
+        }
+        laidOut[number] = true;
+        Inode inode = getInode(number);
+        if (inode.getType() != DIRECTORY && inode.getType() != FILE && inode.getType() != SHARED_TEXT) {
+            return true;
+        }
+
+        inodes.add(number);
+        new BlockMapWalker(disk).walk(inode, new BlockMapVisitor() {
+            @Override
+            public void visitDataBlock(int blockNumber) {
+                assign(inode, blockNumber);
+            }
+
+            @Override
+            public void visitPointerBlock(int blockNumber, int level) {
+                assign(inode, blockNumber);
+                pointerBlocks.add(blockNumber);
+            }
+        });
+        return true;
+    }
+
+    private void assign(Inode inode, int blockNumber) {
+        if (blockNumber < superBlock.getFirstDataBlock() || blockNumber >= superBlock.getBlockCount()) {
+            throw new CheckException(String.format("Inode %d, block %d is not a data block", inode.getNumber(), blockNumber));
+        }
+        if (target[blockNumber] != 0) {
+            throw new CheckException(String.format("Inode %d, block %d is used more than once", inode.getNumber(), blockNumber));
+        }
+        target[blockNumber] = next;
+        source[next] = blockNumber;
+        next++;
+    }
+
+    /**
+     * Put each block in its place, lowest first. The block already in a place is swapped out to where the block
+     * moving in was, unless it is not in use when it is simply written over.
+     */
+    private void move() {
+        int[] at = new int[target.length];
+        int[] location = new int[target.length];
+        for (int blockNumber = superBlock.getFirstDataBlock(); blockNumber < target.length; blockNumber++) {
+            at[blockNumber] = blockNumber;
+            location[blockNumber] = blockNumber;
+        }
+
+        for (int place = superBlock.getFirstDataBlock(); place < next; place++) {
+            int blockNumber = source[place];
+            int current = location[blockNumber];
+            if (current == place) {
+                continue;
+            }
+            int displaced = at[place];
+            copy(current, place, target[displaced] != 0);
+            at[current] = displaced;
+            location[displaced] = current;
+            at[place] = blockNumber;
+            location[blockNumber] = place;
+            movedBlocks++;
+        }
+    }
+
+    private void copy(int from, int to, boolean swap) {
+        try {
+            byte[] fromData = disk.getBlock(from);
+            byte[] toData = disk.getBlock(to);
+            byte[] saved = swap ? toData.clone() : null;
+            System.arraycopy(fromData, 0, toData, 0, toData.length);
+            disk.writeBlock(to, toData);
+            if (swap) {
+                System.arraycopy(saved, 0, fromData, 0, fromData.length);
+                disk.writeBlock(from, fromData);
+            }
+        } catch (IOException e) {
+            throw new BlockUnavailableException(from, e);
+        }
+    }
+
+    // By position in the inode table, the number recorded in an unused inode may not match
+    private Inode getInode(int number) {
+        return inodeManager.getAllInodes().get(number - 1);
+    }
+
+    private byte[] getBlock(int blockNumber) {
+        try {
+            return disk.getBlock(blockNumber);
+        } catch (IOException e) {
+            throw new BlockUnavailableException(blockNumber, e);
+        }
+    }
+}
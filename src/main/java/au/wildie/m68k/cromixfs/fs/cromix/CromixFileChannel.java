@@ -0,0 +1,144 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
+import static au.wildie.m68k.cromixfs.fs.cromix.PointerBlock.BLOCK_POINTER_COUNT;
+
+/**
+ * A read only channel over the content of a file. File offsets are mapped to data blocks through the block map of
+ * the inode, the most recently used pointer block at each level is kept decoded. Data is copied straight out of
+ * the disk blocks, blocks missing from the map read as zeros.
+ */
+public class CromixFileChannel implements SeekableByteChannel {
+    private final DiskInterface disk;
+    private final Inode inode;
+    private final int blockSize;
+    private final int[][] pointers = new int[INDIRECT_3_BLOCK - INDIRECT_1_BLOCK + 2][BLOCK_POINTER_COUNT];
+    private final int[] pointerBlockNumbers = new int[pointers.length];
+    private long position;
+    private boolean open = true;
+
+    public CromixFileChannel(DiskInterface disk, Inode inode, int blockSize) {
+        this.disk = disk;
+        this.inode = inode;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        long size = size();
+        if (position >= size) {
+            return -1;
+        }
+
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int offset = (int) (position % blockSize);
+            int bytes = (int) Math.min(Math.min(blockSize - offset, dst.remaining()), size - position);
+            int blockNumber = getBlockNumber((int) (position / blockSize));
+            if (blockNumber == 0) {
+                for (int i = 0; i < bytes; i++) {
+                    dst.put((byte) 0);
+                }
+            } else {
+                dst.put(disk.getBlock(blockNumber), offset, bytes);
+            }
+            position += bytes;
+            read += bytes;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException(String.format("Negative position %d", newPosition));
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return inode.getFileSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * The data block holding the given block of the file, or 0 if there is none.
+     */
+    protected int getBlockNumber(int fileBlock) throws IOException {
+        if (fileBlock < INDIRECT_1_BLOCK) {
+            return inode.getBlockNumber(fileBlock);
+        }
+
+        int index = fileBlock - INDIRECT_1_BLOCK;
+        if (index < BLOCK_POINTER_COUNT) {
+            return getPointer(inode.getBlockNumber(INDIRECT_1_BLOCK), 1, index);
+        }
+
+        index -= BLOCK_POINTER_COUNT;
+        if (index < BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT) {
+            int blockNumber = getPointer(inode.getBlockNumber(INDIRECT_2_BLOCK), 2, index / BLOCK_POINTER_COUNT);
+            return getPointer(blockNumber, 1, index % BLOCK_POINTER_COUNT);
+        }
+
+        index -= BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT;
+        int blockNumber = getPointer(inode.getBlockNumber(INDIRECT_3_BLOCK), 3, index / (BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT));
+        blockNumber = getPointer(blockNumber, 2, (index / BLOCK_POINTER_COUNT) % BLOCK_POINTER_COUNT);
+        return getPointer(blockNumber, 1, index % BLOCK_POINTER_COUNT);
+    }
+
+    private int getPointer(int pointerBlockNumber, int level, int index) throws IOException {
+        if (pointerBlockNumber == 0 || index >= BLOCK_POINTER_COUNT) {
+            return 0;
+        }
+        if (pointerBlockNumbers[level] != pointerBlockNumber) {
+            pointerBlockNumbers[level] = 0;
+            PointerBlock.readPointers(disk.getBlock(pointerBlockNumber), pointers[level]);
+            pointerBlockNumbers[level] = pointerBlockNumber;
+        }
+        return pointers[level][index];
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
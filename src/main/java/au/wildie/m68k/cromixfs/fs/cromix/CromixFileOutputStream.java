@@ -0,0 +1,117 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes the content of a file. Data is buffered a track at a time, each full buffer is allocated as a run of
+ * consecutive blocks and copied into them. The inode size and used block count are set when the stream is closed.
+ * A run is reserved and released within the write of each buffer, so several streams may be open at once.
+ */
+public class CromixFileOutputStream extends OutputStream {
+    // A track of a large floppy
+    public static final int BUFFERED_BLOCKS = 16;
+
+    private final InodeManager inodeManager;
+    private final FreeBlockList freeBlockList;
+    private final Inode inode;
+    private final boolean commitOnClose;
+    private final int blockSize;
+    private final byte[] buffer;
+    private int buffered;
+    private int blockCount;
+    private int fileSize;
+    private boolean closed;
+
+    /**
+     * The inode must not have any blocks. When commitOnClose is set the changes are committed as the stream is
+     * closed, otherwise it is left to the caller.
+     */
+    public CromixFileOutputStream(InodeManager inodeManager, Inode inode, boolean commitOnClose) {
+        this.inodeManager = inodeManager;
+        this.freeBlockList = inodeManager.getFreeBlockList();
+        this.inode = inode;
+        this.commitOnClose = commitOnClose;
+        this.blockSize = inodeManager.getSuperBlock().getBlockSize();
+        this.buffer = new byte[BUFFERED_BLOCKS * blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (buffered == buffer.length) {
+            writeBlocks();
+        }
+        buffer[buffered++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (buffered == buffer.length) {
+                writeBlocks();
+            }
+            int bytes = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, bytes);
+            buffered += bytes;
+            off += bytes;
+            len -= bytes;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (buffered > 0) {
+                writeBlocks();
+            }
+            inode.setUsedBlockCount(blockCount + Inode.getPointerBlockCount(blockCount));
+            inode.setFileSize(fileSize);
+            inodeManager.markDirty(inode);
+            inodeManager.getWriteBack().markDirty(inodeManager.getSuperBlock());
+        } finally {
+            if (commitOnClose) {
+                inodeManager.commit();
+            }
+        }
+    }
+
+    private void writeBlocks() throws IOException {
+        int count = (buffered + blockSize - 1) / blockSize;
+        // Keep the blocks, and any pointer blocks they need, together, unless the caller has reserved for the file
+        boolean reserved = !freeBlockList.isReserved();
+        if (reserved) {
+            freeBlockList.reserve(count + Inode.getPointerBlockCount(blockCount + count) - Inode.getPointerBlockCount(blockCount));
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                int blockNumber = freeBlockList.getAvailableBlock();
+                byte[] block = inodeManager.getDisk().getBlock(blockNumber);
+                int bytes = Math.min(blockSize, buffered - i * blockSize);
+                System.arraycopy(buffer, i * blockSize, block, 0, bytes);
+                Arrays.fill(block, bytes, block.length, (byte) 0);
+                inodeManager.getDisk().writeBlock(blockNumber, block);
+                inodeManager.addBlock(inode, blockNumber);
+            }
+        } finally {
+            if (reserved) {
+                freeBlockList.releaseReservation();
+            }
+        }
+        blockCount += count;
+        fileSize += buffered;
+        buffered = 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -5,25 +5,27 @@ import au.wildie.m68k.cromixfs.disk.imd.ImageException;
 import au.wildie.m68k.cromixfs.fs.CromixTime;
 import au.wildie.m68k.cromixfs.fs.DumpMode;
 import au.wildie.m68k.cromixfs.fs.FileSystem;
+import lombok.AccessLevel;
 import lombok.Getter;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 import static au.wildie.m68k.cromixfs.fs.DumpMode.EXTRACT;
 import static au.wildie.m68k.cromixfs.fs.DumpMode.LIST;
 import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
 import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.*;
 import static au.wildie.m68k.cromixfs.fs.cromix.PointerBlock.BLOCK_POINTER_COUNT;
-import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_INODE_LIST_SIZE;
 import static au.wildie.m68k.cromixfs.utils.BinUtils.readDWord;
-import static java.lang.Integer.max;
 
 public class CromixFileSystem implements FileSystem {
 
@@ -35,6 +37,7 @@ public class CromixFileSystem implements FileSystem {
     private final DiskInterface disk;
     private final SuperBlock superBlock;
     private final FreeBlockList freeBlockList;
+    @Getter(AccessLevel.PROTECTED)
     private final InodeManager inodeManager;
 
     public static boolean isValid(DiskInterface disk) {
@@ -65,6 +68,7 @@ public class CromixFileSystem implements FileSystem {
         inodeManager.addBlock(one, blockNumber);
         DirectoryBlock directoryBlock = DirectoryBlock.from(disk, blockNumber);
         directoryBlock.flush(disk);
+        inodeManager.commit();
         inodeManager.flushAll();
         disk.flushSuperBlock(superBlock.toBytes());
 
@@ -101,6 +105,81 @@ public class CromixFileSystem implements FileSystem {
         readDirectory("", inodeManager.getInode( 1), EXTRACT, path, out);
     }
 
+    /**
+     * Open a file for reading, the path is absolute and uses / as the separator.
+     */
+    public SeekableByteChannel openChannel(String path) throws IOException {
+        Inode inode = findInode(path);
+        if (inode == null) {
+            throw new FileNotFoundException(String.format("%s does not exist", path));
+        }
+        if (inode.getType() != FILE && inode.getType() != SHARED_TEXT) {
+            throw new FileNotFoundException(String.format("%s is not a file", path));
+        }
+        return new CromixFileChannel(disk, inode, superBlock.getBlockSize());
+    }
+
+    public InputStream openInputStream(String path) throws IOException {
+        return Channels.newInputStream(openChannel(path));
+    }
+
+    protected Inode findInode(String path) {
+        Inode inode = inodeManager.getInode(1);
+        for (String name : StringUtils.split(path, FILE_SEP)) {
+            if (inode.getType() != DIRECTORY) {
+                return null;
+            }
+            // Names are stored in lower case when files are added, as findDirectoryEntry looks them up
+            Integer inodeNumber = findInodeNumber(inode, name);
+            if (inodeNumber == null && !name.equals(name.toLowerCase())) {
+                inodeNumber = findInodeNumber(inode, name.toLowerCase());
+            }
+            if (inodeNumber == null) {
+                return null;
+            }
+            inode = inodeManager.getInode(inodeNumber);
+        }
+        return inode;
+    }
+
+    /**
+     * Find an inode through the directories held by the write back cache, so that entries that have not been
+     * committed yet are seen.
+     */
+    private Inode findPendingInode(String path) {
+        Inode inode = inodeManager.getInode(1);
+        for (String name : StringUtils.split(path, FILE_SEP)) {
+            if (inode.getType() != DIRECTORY) {
+                return null;
+            }
+            DirectoryEntry entry = inodeManager.getWriteBack().getDirectoryIndex(inode).find(name);
+            if (entry == null) {
+                entry = findDirectoryEntry(inode, name);
+            }
+            if (entry == null) {
+                return null;
+            }
+            inode = inodeManager.getInode(entry.getInodeNumber());
+        }
+        return inode;
+    }
+
+    private Integer findInodeNumber(Inode directory, String name) {
+        DirectoryEntryView entry = new DirectoryEntryView();
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            int blockNumber = directory.getBlockNumber(i);
+            if (blockNumber != 0) {
+                byte[] block = getBlock(blockNumber);
+                for (int j = 0; j < DirectoryBlock.DIRECTORY_ENTRIES; j++) {
+                    if (entry.wrap(block, j).isAllocated() && entry.nameEquals(name)) {
+                        return entry.getInodeNumber();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     public void dumpInodes(PrintStream out) {
         inodeManager.getAllInodes().stream()
                 .filter(inode -> inode.getType() != UNUSED && inode.getType() != UNKNOWN)
@@ -108,7 +187,24 @@ public class CromixFileSystem implements FileSystem {
     }
 
     public CromixFileSystemStats check(PrintStream out) {
+        return check(new Check(superBlock, inodeManager, disk), out);
+    }
+
+    /**
+     * Check the filesystem, reusing the results kept in the given file by an earlier check for the inode blocks
+     * that have not changed since. The results of this check are then written back to the file.
+     */
+    public CromixFileSystemStats check(PrintStream out, File results) throws IOException {
         Check check = new Check(superBlock, inodeManager, disk);
+        check.useCache(CheckCache.read(results));
+        CromixFileSystemStats stats = check(check, out);
+        check.getCache().write(results);
+        out.printf("Reused results for %d of %d inode blocks, saved in %s\n",
+                check.getReusedCount(), check.getCache().getRegionCount(), results.getPath());
+        return stats;
+    }
+
+    private CromixFileSystemStats check(Check check, PrintStream out) {
         out.println("Executing dcheck");
         check.passOne();
         int dcheckErrors = check.passTwo(out);
@@ -118,10 +214,13 @@ public class CromixFileSystem implements FileSystem {
             out.println("Completed dcheck\n");
         }
 
-        Integer iblockErrors = null;
+        // The block maps are walked once, for the inode block check and the block usage
         if (dcheckErrors == 0) {
             out.println("Executing inode block check");
-            iblockErrors = check.fileCheck(out);
+        }
+        Check.Walk walk = check.walk(out, dcheckErrors == 0);
+        Integer iblockErrors = walk.getFileErrors();
+        if (iblockErrors != null) {
             if (iblockErrors == 0) {
                 out.println("No inode block errors\n");
             } else {
@@ -129,17 +228,8 @@ public class CromixFileSystem implements FileSystem {
             }
         }
 
-        InodeStats inodeStats = new InodeStats(superBlock);
-        inodeManager.getAllInodes().forEach(inodeStats::countUsage);
-
-        for (int i = 0; i < FREE_INODE_LIST_SIZE; i++) {
-            int inodeNumber = superBlock.getFreeInodeList()[i];
-            if (inodeNumber != 0) {
-                inodeStats.countFreeList(inodeManager.getInode(inodeNumber));
-            }
-        }
-
-        BlockStats blockStats = checkBlocks();
+        InodeStats inodeStats = walk.getInodeStats();
+        BlockStats blockStats = getBlockStats(walk);
 
         inodeStats.print(out);
         blockStats.print(out);
@@ -147,75 +237,11 @@ public class CromixFileSystem implements FileSystem {
         return new CromixFileSystemStats(dcheckErrors, iblockErrors, blockStats, inodeStats);
     }
 
-    protected BlockStats checkBlocks() {
-        BlockUsage blockUsage = new BlockUsage(superBlock);
-        AtomicInteger fileCount = new AtomicInteger();
-        AtomicInteger directoryCount = new AtomicInteger();
-        AtomicInteger deviceCount = new AtomicInteger();
-
-        inodeManager.getAllInodes().forEach(inode -> {
-            if (inode.getType() == CHARACTER_DEVICE || inode.getType() == BLOCK_DEVICE) {
-                deviceCount.getAndIncrement();
-            }
-
-            if (inode.getType() == DIRECTORY) {
-                directoryCount.getAndIncrement();
-                for (int i = 0; i < 0x10; i++) {
-                    int blockNumber = inode.getBlockNumber(i);
-                    if (blockNumber != 0) {
-                        blockUsage.setDirectory(blockNumber);
-                    }
-                }
-            }
-
-            if (inode.getType() == FILE || inode.getType() == SHARED_TEXT) {
-                fileCount.getAndIncrement();
-                for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-                    if (inode.getBlockNumber(i) != 0) {
-                        blockUsage.setFile(inode.getBlockNumber(i));
-                    }
-                }
-                if (inode.getBlockNumber(INDIRECT_1_BLOCK) != 0) {
-                    // Is a pointer block
-                    blockUsage.setFile(inode.getBlockNumber(INDIRECT_1_BLOCK));
-                    PointerBlock pointerBlock = getPointerBlock(inode.getBlockNumber(INDIRECT_1_BLOCK));
-                    pointerBlock.getPointerList().stream()
-                            .filter(blockNumber -> blockNumber != 0)
-                            .forEach(blockUsage::setFile);
-                }
-
-                if (inode.getBlockNumber(INDIRECT_2_BLOCK) != 0) {
-                    // Is a pointer block of pointer blocks
-                    blockUsage.setFile(inode.getBlockNumber(INDIRECT_2_BLOCK));
-                    PointerBlock pointerBlock = getPointerBlock(inode.getBlockNumber(INDIRECT_2_BLOCK));
-                    pointerBlock.getPointerList().stream()
-                            .filter(blockNumber -> blockNumber != 0)
-                            .peek(blockUsage::setFile)
-                            .flatMap(blockNumber -> getPointerBlock(blockNumber).getPointerList().stream())
-                            .filter(blockNumber -> blockNumber != 0)
-                            .forEach(blockUsage::setFile);
-                }
-
-                if (inode.getBlockNumber(INDIRECT_3_BLOCK) != 0) {
-                    // Is a pointer block of pointer blocks of pointer blocks
-                    blockUsage.setFile(inode.getBlockNumber(INDIRECT_3_BLOCK));
-                    PointerBlock pointerBlock = getPointerBlock(inode.getBlockNumber(INDIRECT_3_BLOCK));
-                    pointerBlock.getPointerList().stream()
-                            .filter(blockNumber -> blockNumber != 0)
-                            .peek(blockUsage::setFile)
-                            .flatMap(blockNumber -> getPointerBlock(blockNumber).getPointerList().stream())
-                            .filter(blockNumber -> blockNumber != 0)
-                            .peek(blockUsage::setFile)
-                            .flatMap(blockNumber -> getPointerBlock(blockNumber).getPointerList().stream())
-                            .filter(blockNumber -> blockNumber != 0)
-                            .forEach(blockUsage::setFile);
-                }
-            }
-        });
-
+    protected BlockStats getBlockStats(Check.Walk walk) {
+        BlockUsage blockUsage = walk.getBlockUsage();
         freeBlockList.visit(blockUsage::setOnFreeList);
 
-        blockUsage.getOrphanedBlocks().forEach(item -> System.out.printf("Orphaned block number 0x%06x\n", item.getNumber()));
+        blockUsage.orphanedBlocks().forEachRemaining((IntConsumer) blockNumber -> System.out.printf("Orphaned block number 0x%06x\n", blockNumber));
 
         BlockStats stats = new BlockStats(superBlock);
         stats.setFileBlocks(blockUsage.getFileBlockCount());
@@ -224,25 +250,51 @@ public class CromixFileSystem implements FileSystem {
         stats.setOrphanedBlocks(blockUsage.getOrphanedBlockCount());
         stats.setDuplicateBlocks(blockUsage.getDuplicateBlockCount());
         stats.setFreeListBlocks(freeBlockList.getFreeBlockCount());
-        stats.setFiles(fileCount.get());
-        stats.setDirectories(directoryCount.get());
-        stats.setDevices(deviceCount.get());
+        stats.setFiles(walk.getFiles());
+        stats.setDirectories(walk.getDirectories());
+        stats.setDevices(walk.getDevices());
 
         return stats;
     }
 
+    /**
+     * Move the blocks of the directories and files into one run at the start of the data area, in the order the
+     * files are extracted, and rebuild the free block list from the blocks left over. The filesystem is checked
+     * first and is not changed if there are any errors.
+     */
+    public Compactor compact(PrintStream out) {
+        CromixFileSystemStats stats = check(out);
+        if (stats.hasErrors() || stats.getBlockStats().getDuplicateBlocks() != 0) {
+            throw new CheckException("The filesystem has errors and cannot be compacted");
+        }
+
+        Compactor compactor = new Compactor(superBlock, inodeManager, disk);
+        compactor.compact();
+        out.printf("Compacted %d blocks, %d moved, %d free\n",
+                compactor.getUsedBlocks(), compactor.getMovedBlocks(), freeBlockList.getFreeBlockCount());
+        return compactor;
+    }
+
     public void append(File path, PrintStream out){
         Inode rootInode = inodeManager.getInode(1);
-        if (path.isDirectory()) {
-            addDirectory(path, path, rootInode, out);
-        } else if (path.isFile()) {
-            addFile(path.getParentFile() != null ? path.getParentFile() : path.getAbsoluteFile().getParentFile(), rootInode, path, out);
+        try {
+            if (path.isDirectory()) {
+                addDirectory(path, path, rootInode, out);
+            } else if (path.isFile()) {
+                addFile(path.getParentFile() != null ? path.getParentFile() : path.getAbsoluteFile().getParentFile(), rootInode, path, out);
+            }
+        } finally {
+            inodeManager.commit();
         }
     }
 
     public void addDirectory(File directory, PrintStream out) {
         if (directory.isDirectory()) {
-            addDirectory(directory, directory, inodeManager.getInode(1), out);
+            try {
+                addDirectory(directory, directory, inodeManager.getInode(1), out);
+            } finally {
+                inodeManager.commit();
+            }
         }
     }
 
@@ -274,68 +326,97 @@ public class CromixFileSystem implements FileSystem {
     }
 
     protected DirectoryEntry addFile(File rootDirectory, Inode parentInode, File file, PrintStream out) {
-        DirectoryEntry entry = findDirectoryEntry(parentInode, file.getName());
-        Inode entryInode;
-        if (entry != null) {
+        if (findDirectoryEntry(parentInode, file.getName()) != null) {
             out.printf("Replacing file     : %s\n", rootDirectory.toPath().relativize(file.toPath()));
-            // Existing file
-            entryInode = inodeManager.getInode(entry.getInodeNumber());
-            entryInode.deleteFileBlocks(disk, freeBlockList);
         } else {
             out.printf("Adding file        : %s\n", rootDirectory.toPath().relativize(file.toPath()));
-
-            entryInode = inodeManager.getAvailableInode();
-            entryInode.setType(FILE);
-            entryInode.setLinks(1);
-            entryInode.setOwner(32767);
-            entryInode.setGroup(32767);
-            entryInode.setOwnerPermission(ACCESS_READ | ACCESS_WRITE | ACCESS_APPEND);
-            entryInode.setGroupPermission(ACCESS_READ);
-            entryInode.setOtherPermission(ACCESS_READ);
-            entryInode.setCreated(CromixTime.now());
-            entryInode.setModified(CromixTime.now());
-            entryInode.setAccessed(CromixTime.now());
-
-            // Find the first unused directory entry
-            entry = getNextAvailableDirectoryEntry(parentInode);
-            entry.setStatus(DirectoryEntryStatus.ALLOCATED);
-            entry.setName(file.getName().toLowerCase());
-            entry.setInodeNumber(entryInode.getNumber());
-            entry.flush(disk);
-
-            parentInode.incrementDirectoryEntryCount();
-            parentInode.setFileSize(getDirectoryExtent(parentInode));
-            inodeManager.flush(parentInode);
         }
+        DirectoryEntry entry = createFileEntry(parentInode, file.getName());
+        Inode entryInode = inodeManager.getInode(entry.getInodeNumber());
 
-        try (FileInputStream in = new FileInputStream(file)) {
-            int freeBlocks = freeBlockList.getFreeBlockCount();
-            int fileSize = 0;
-            byte[] data = new byte[superBlock.getBlockSize()];
-            while(true) {
-                int bytes = in.read(data);
-                if (bytes > 0) {
-                    int blockNumber = freeBlockList.getAvailableBlock();
-                    byte[] block = disk.getBlock(blockNumber);
-                    System.arraycopy(data, 0, block, 0, bytes);
-                    fileSize += bytes;
-                    inodeManager.addBlock(entryInode, blockNumber);
-                }
-                if (bytes < superBlock.getBlockSize()) {
-                    break;
-                }
-            }
-            entryInode.setUsedBlockCount(freeBlocks - freeBlockList.getFreeBlockCount());
-            entryInode.setFileSize(fileSize);
+        // Keep the file's data and pointer blocks together
+        int dataBlocks = (int) ((file.length() + superBlock.getBlockSize() - 1) / superBlock.getBlockSize());
+        freeBlockList.reserve(dataBlocks + Inode.getPointerBlockCount(dataBlocks));
+
+        try (InputStream in = new FileInputStream(file);
+             OutputStream fileOut = new CromixFileOutputStream(inodeManager, entryInode, false)) {
+            IOUtils.copy(in, fileOut);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            freeBlockList.releaseReservation();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Create or replace a file, the path is absolute and uses / as the separator. The parent directory must exist.
+     * The file is committed when the stream is closed.
+     */
+    public OutputStream createOutputStream(String path) throws IOException {
+        String name = StringUtils.substringAfterLast(FILE_SEP + path, FILE_SEP);
+        Inode parentInode = findPendingInode(StringUtils.substringBeforeLast(FILE_SEP + path, FILE_SEP));
+        if (parentInode == null || parentInode.getType() != DIRECTORY) {
+            throw new FileNotFoundException(String.format("The directory of %s does not exist", path));
+        }
+        if (name.isEmpty() || name.length() > DirectoryEntry.NAME_LENGTH) {
+            throw new CromixFileSystemException(String.format("Invalid file name \"%s\"", name));
         }
-        inodeManager.flush(entryInode);
 
-        entry.flush(disk);
+        DirectoryEntry existing = findDirectoryEntry(parentInode, name);
+        if (existing != null) {
+            Inode inode = inodeManager.getInode(existing.getInodeNumber());
+            if (inode.getType() != FILE) {
+                throw new CromixFileSystemException(String.format("%s is not a file", path));
+            }
+        }
+        try {
+            DirectoryEntry entry = createFileEntry(parentInode, name);
+            return new CromixFileOutputStream(inodeManager, inodeManager.getInode(entry.getInodeNumber()), true);
+        } catch (RuntimeException e) {
+            inodeManager.commit();
+            throw e;
+        }
+    }
 
-        superBlock.flush(disk);
+    /**
+     * Find the entry for a file, releasing the blocks of the existing file, or allocate a new entry and inode.
+     */
+    protected DirectoryEntry createFileEntry(Inode parentInode, String name) {
+        DirectoryEntry entry = findDirectoryEntry(parentInode, name);
+        if (entry != null) {
+            // Existing file
+            Inode entryInode = inodeManager.getInode(entry.getInodeNumber());
+            entryInode.deleteFileBlocks(inodeManager.getWriteBack(), freeBlockList);
+            inodeManager.markDirty(entryInode);
+            return entry;
+        }
 
+        Inode entryInode = inodeManager.getAvailableInode();
+        entryInode.setType(FILE);
+        entryInode.setLinks(1);
+        entryInode.setOwner(32767);
+        entryInode.setGroup(32767);
+        entryInode.setOwnerPermission(ACCESS_READ | ACCESS_WRITE | ACCESS_APPEND);
+        entryInode.setGroupPermission(ACCESS_READ);
+        entryInode.setOtherPermission(ACCESS_READ);
+        entryInode.setCreated(CromixTime.now());
+        entryInode.setModified(CromixTime.now());
+        entryInode.setAccessed(CromixTime.now());
+        inodeManager.markDirty(entryInode);
+
+        // Find the first unused directory entry
+        entry = getNextAvailableDirectoryEntry(parentInode);
+        entry.setStatus(DirectoryEntryStatus.ALLOCATED);
+        entry.setName(name.toLowerCase());
+        entry.setInodeNumber(entryInode.getNumber());
+        inodeManager.getWriteBack().markDirty(entry.getDirectoryBlock());
+        inodeManager.getWriteBack().getDirectoryIndex(parentInode).allocated(entry);
+
+        parentInode.incrementDirectoryEntryCount();
+        parentInode.setFileSize(getDirectoryExtent(parentInode));
+        inodeManager.markDirty(parentInode);
         return entry;
     }
 
@@ -362,78 +443,62 @@ public class CromixFileSystem implements FileSystem {
         entryInode.setCreated(CromixTime.now());
         entryInode.setModified(CromixTime.now());
         entryInode.setAccessed(CromixTime.now());
-        inodeManager.flush(entryInode);
+        inodeManager.markDirty(entryInode);
 
         entry.setStatus(DirectoryEntryStatus.ALLOCATED);
         entry.setName(dir.getName().toLowerCase());
         entry.setInodeNumber(entryInode.getNumber());
-        entry.flush(disk);
+        inodeManager.getWriteBack().markDirty(entry.getDirectoryBlock());
+        inodeManager.getWriteBack().getDirectoryIndex(parentInode).allocated(entry);
 
         parentInode.incrementDirectoryEntryCount();
         parentInode.setFileSize(getDirectoryExtent(parentInode));
-        inodeManager.flush(parentInode);
+        inodeManager.markDirty(parentInode);
 
-        superBlock.flush(disk);
+        inodeManager.getWriteBack().markDirty(superBlock);
         return entry;
     }
 
     protected DirectoryEntry findDirectoryEntry(Inode parentInode, String name) {
         // Look for a directory entry with the same name
-        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-            int blockNumber = parentInode.getBlockNumber(i);
-            if (blockNumber != 0) {
-                DirectoryBlock directoryBlock = DirectoryBlock.from(disk, blockNumber);
-                DirectoryEntry entry = directoryBlock.findEntry(name.toLowerCase());
-                if (entry != null) {
-                    return entry;
-                }
-            }
-        }
-        return null;
+        return inodeManager.getWriteBack().getDirectoryIndex(parentInode).find(name.toLowerCase());
     }
 
     private DirectoryEntry getNextAvailableDirectoryEntry(Inode inode) {
         // Find the first unused directory entry
-        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-            int blockNumber = inode.getBlockNumber(i);
-            if (blockNumber != 0) {
-                DirectoryBlock directoryBlock = DirectoryBlock.from(disk, blockNumber);
-                DirectoryEntry unused = directoryBlock.getFirstUnusedEntry();
-                if (unused != null) {
-                    return unused;
-                }
-            }
+        DirectoryIndex index = inodeManager.getWriteBack().getDirectoryIndex(inode);
+        DirectoryEntry unused = index.getFirstUnusedEntry();
+        if (unused != null) {
+            return unused;
         }
 
         // Need to add a new directory block
         int blockNumber = freeBlockList.getAvailableBlock();
         DirectoryBlock directoryBlock = new DirectoryBlock(blockNumber, true);
-        directoryBlock.flush(disk);
+        inodeManager.getWriteBack().markDirty(directoryBlock);
         inodeManager.addBlock(inode, blockNumber);
-        inodeManager.flush(inode);
+        inodeManager.markDirty(inode);
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            if (inode.getBlockNumber(i) == blockNumber) {
+                index.addBlock(i, directoryBlock);
+            }
+        }
         return directoryBlock.getFirstUnusedEntry();
     }
 
     private Integer getDirectoryExtent(Inode inode) {
-        int extent = 0;
-        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-            if (inode.getBlockNumber(i) != 0) {
-                DirectoryBlock directoryBlock = DirectoryBlock.from(disk, inode.getBlockNumber(i));
-                if (directoryBlock.getUnusedEntries() > 0) {
-                    extent = max(extent, i * superBlock.getBlockSize() + directoryBlock.getExtent());
-                }
-            }
-        }
-        return extent;
+        return inodeManager.getWriteBack().getDirectoryIndex(inode).getExtent();
     }
 
     private void readDirectory(String srcPath, Inode inode, DumpMode mode, String trgPath, PrintStream listingOut) throws IOException {
+        DirectoryEntryView entry = new DirectoryEntryView();
         for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
             int blockNumber = inode.getBlockNumber(i);
             if (blockNumber != 0) {
-                DirectoryBlock directoryBlock = DirectoryBlock.from(disk, blockNumber);
-                for (DirectoryEntry entry : directoryBlock.getEntries()) {
-                    if (entry.getStatus() == DirectoryEntryStatus.ALLOCATED) {
+                byte[] directoryBlock = getBlock(blockNumber);
+                for (int j = 0; j < DirectoryBlock.DIRECTORY_ENTRIES; j++) {
+                    if (entry.wrap(directoryBlock, j).isAllocated()) {
+                        String name = entry.getName();
                         Inode entryInode = inodeManager.getInode(entry.getInodeNumber());
 
                         if (entryInode.getType() == CHARACTER_DEVICE || entryInode.getType() == BLOCK_DEVICE) {
@@ -453,15 +518,15 @@ public class CromixFileSystem implements FileSystem {
                                 entryInode.getNumber(),
                                 srcPath,
                                 FILE_SEP,
-                                entry.getName());
+                                name);
 
                         if (entryInode.getType() == DIRECTORY) {
                             File dir = null;
                             if (mode == EXTRACT) {
-                                dir = new File(trgPath + FILE_SEP + entry.getName());
+                                dir = new File(trgPath + FILE_SEP + name);
                                 dir.mkdirs();
                             }
-                            readDirectory(srcPath + FILE_SEP + entry.getName(), entryInode, mode, mode == EXTRACT ? (trgPath + FILE_SEP + entry.getName()) : (srcPath + FILE_SEP + entry.getName()), listingOut);
+                            readDirectory(srcPath + FILE_SEP + name, entryInode, mode, mode == EXTRACT ? (trgPath + FILE_SEP + name) : (srcPath + FILE_SEP + name), listingOut);
                             if (mode == EXTRACT) {
                                 try {
                                     dir.setLastModified(entryInode.getModified().toDate().getTime());
@@ -471,7 +536,7 @@ public class CromixFileSystem implements FileSystem {
                             }
                         }
                         if (entryInode.getType() == FILE && mode == EXTRACT) {
-                            extractFile(entryInode, entryInode.getFileSize(), entryInode.getModified(), trgPath + FILE_SEP + entry.getName());
+                            extractFile(entryInode, entryInode.getFileSize(), entryInode.getModified(), trgPath + FILE_SEP + name);
                         }
                     }
                 }
@@ -552,10 +617,6 @@ public class CromixFileSystem implements FileSystem {
         }
     }
 
-    protected PointerBlock getPointerBlock(int blockNumber) {
-        return PointerBlock.from(blockNumber, disk);
-    }
-
     protected byte[] getBlock(int blockNumber) {
         try {
             return disk.getBlock(blockNumber);
@@ -62,6 +62,7 @@ public class DirectoryBlock {
             for (int i = 0; i < DIRECTORY_ENTRIES; i++) {
                 entries[i].toBytes(data, i * DIRECTORY_ENTRY_LENGTH);
             }
+            disk.writeBlock(blockNumber, data);
         } catch (IOException e) {
             throw new BlockUnavailableException(blockNumber, e);
         }
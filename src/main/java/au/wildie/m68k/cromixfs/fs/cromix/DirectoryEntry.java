@@ -16,9 +16,9 @@ public class DirectoryEntry {
     public static final int DIRECTORY_ENTRY_LENGTH = 0x20;
 
     public static final int NAME_LENGTH = 0x18;
-    private static final int OFFSET_STATUS = 0x1c;
-    private static final int OFFSET_INODE = 0x1e;
-    private static final int FLAG_ALLOCATED = 0x8000;
+    static final int OFFSET_STATUS = 0x1c;
+    static final int OFFSET_INODE = 0x1e;
+    static final int FLAG_ALLOCATED = 0x8000;
 
     private final int index;
     private DirectoryEntryStatus status;
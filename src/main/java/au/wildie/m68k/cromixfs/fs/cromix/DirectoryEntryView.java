@@ -0,0 +1,51 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import java.nio.ByteBuffer;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntry.*;
+import static au.wildie.m68k.cromixfs.utils.BinUtils.readString;
+
+/**
+ * A read only view of an entry in a directory block, decoded from the block bytes as it is read. The view is moved
+ * from entry to entry, so scanning a directory only allocates for the names that are asked for.
+ */
+public class DirectoryEntryView {
+    private ByteBuffer buffer;
+    private int offset;
+
+    public DirectoryEntryView wrap(byte[] block, int index) {
+        if (buffer == null || buffer.array() != block) {
+            buffer = ByteBuffer.wrap(block);
+        }
+        offset = index * DIRECTORY_ENTRY_LENGTH;
+        return this;
+    }
+
+    public boolean isAllocated() {
+        return (0xFFFF & buffer.getShort(offset + OFFSET_STATUS)) == FLAG_ALLOCATED;
+    }
+
+    public int getInodeNumber() {
+        return 0xFFFF & buffer.getShort(offset + OFFSET_INODE);
+    }
+
+    public String getName() {
+        return readString(buffer.array(), offset, NAME_LENGTH);
+    }
+
+    public boolean nameEquals(String name) {
+        int length = 0;
+        while (length < NAME_LENGTH && buffer.get(offset + length) != 0) {
+            length++;
+        }
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((char) buffer.get(offset + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryBlock.DIRECTORY_ENTRIES;
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntry.DIRECTORY_ENTRY_LENGTH;
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntryStatus.ALLOCATED;
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.INDIRECT_1_BLOCK;
+import static java.lang.Integer.max;
+
+/**
+ * The entries of a directory, indexed by name, with the unused entries in directory order. It is built from the
+ * directory blocks of the inode when it is first needed and is kept up to date as entries are allocated and released.
+ */
+public class DirectoryIndex {
+    private final int blockSize;
+    private final DirectoryBlock[] blocks = new DirectoryBlock[INDIRECT_1_BLOCK];
+    private final int[] allocated = new int[INDIRECT_1_BLOCK];
+    private final int[] lastAllocated = new int[INDIRECT_1_BLOCK];
+    private final Map<String, DirectoryEntry> names = new HashMap<>();
+    private final TreeSet<Integer> unused = new TreeSet<>();
+    private Integer extent;
+
+    public static DirectoryIndex build(Inode inode, WriteBackCache writeBack, int blockSize) {
+        DirectoryIndex index = new DirectoryIndex(blockSize);
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            int blockNumber = inode.getBlockNumber(i);
+            if (blockNumber != 0) {
+                index.addBlock(i, writeBack.getDirectoryBlock(blockNumber));
+            }
+        }
+        return index;
+    }
+
+    public DirectoryIndex(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public void addBlock(int blockIndex, DirectoryBlock directoryBlock) {
+        blocks[blockIndex] = directoryBlock;
+        lastAllocated[blockIndex] = -1;
+        for (DirectoryEntry entry : directoryBlock.getEntries()) {
+            if (entry.getStatus() == ALLOCATED) {
+                allocated[blockIndex]++;
+                lastAllocated[blockIndex] = entry.getIndex();
+                names.putIfAbsent(entry.getName(), entry);
+            } else {
+                unused.add(getSlot(blockIndex, entry));
+            }
+        }
+        extent = null;
+    }
+
+    public DirectoryEntry find(String name) {
+        return names.get(name);
+    }
+
+    public DirectoryEntry getFirstUnusedEntry() {
+        if (unused.isEmpty()) {
+            return null;
+        }
+        int slot = unused.first();
+        return blocks[slot / DIRECTORY_ENTRIES].getEntries()[slot % DIRECTORY_ENTRIES];
+    }
+
+    /**
+     * Record an entry that has just been allocated a name.
+     */
+    public void allocated(DirectoryEntry entry) {
+        int blockIndex = getBlockIndex(entry);
+        if (unused.remove(getSlot(blockIndex, entry))) {
+            allocated[blockIndex]++;
+            lastAllocated[blockIndex] = max(lastAllocated[blockIndex], entry.getIndex());
+            names.putIfAbsent(entry.getName(), entry);
+            extent = null;
+        }
+    }
+
+    /**
+     * Record an entry that has just been released.
+     */
+    public void released(DirectoryEntry entry, String name) {
+        int blockIndex = getBlockIndex(entry);
+        if (unused.add(getSlot(blockIndex, entry))) {
+            allocated[blockIndex]--;
+            names.remove(name, entry);
+            lastAllocated[blockIndex] = -1;
+            for (DirectoryEntry other : blocks[blockIndex].getEntries()) {
+                if (other.getStatus() == ALLOCATED && other != entry) {
+                    lastAllocated[blockIndex] = other.getIndex();
+                }
+            }
+            extent = null;
+        }
+    }
+
+    /**
+     * The extent of the directory, measured the same way as the directory blocks are scanned, only blocks with an
+     * unused entry contribute.
+     */
+    public int getExtent() {
+        if (extent == null) {
+            int value = 0;
+            for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+                if (blocks[i] != null && allocated[i] < DIRECTORY_ENTRIES) {
+                    value = max(value, i * blockSize + (lastAllocated[i] + 1) * DIRECTORY_ENTRY_LENGTH);
+                }
+            }
+            extent = value;
+        }
+        return extent;
+    }
+
+    private int getBlockIndex(DirectoryEntry entry) {
+        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
+            if (blocks[i] == entry.getDirectoryBlock()) {
+                return i;
+            }
+        }
+        throw new CromixFileSystemException(String.format("Directory block %d is not in the directory", entry.getDirectoryBlock().getBlockNumber()));
+    }
+
+    private static int getSlot(int blockIndex, DirectoryEntry entry) {
+        return blockIndex * DIRECTORY_ENTRIES + entry.getIndex();
+    }
+}
@@ -1,62 +1,264 @@
 package au.wildie.m68k.cromixfs.fs.cromix;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import lombok.Getter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
 
 import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_BLOCK_LIST_SIZE;
+import static java.lang.Integer.min;
 
+/**
+ * The free blocks, held as a bitmap. It is read from, and written back as, the Cromix chain of free block lists,
+ * see {@link FreeBlock}. Blocks are allocated lowest first, or from a reserved run of consecutive free blocks.
+ * Consecutive block numbers follow the track and interleave order of the disk, so a file allocated from a run is
+ * laid out for sequential reading.
+ */
 public class FreeBlockList {
     private final SuperBlock superBlock;
     private final DiskInterface disk;
-    private FreeBlock freeBlock;
+    private final BitSet free;
+    // Entries read from the lists that are not free data blocks, duplicates, zeros or out of range
+    private final List<Integer> strayEntries = new ArrayList<>();
+    private int freeCount;
+    private int lowestFree;
+    private int reservedFrom = -1;
+    private int reservedTo = -1;
+    @Getter
+    private boolean dirty;
 
     public static FreeBlockList create(SuperBlock superBlock, DiskInterface disk) {
         FreeBlockList freeBlockList = new FreeBlockList(superBlock, disk);
-        freeBlockList.freeBlock = FreeBlock.create(0, superBlock);
+        freeBlockList.free.set(superBlock.getFirstDataBlock(), superBlock.getBlockCount());
+        freeBlockList.freeCount = superBlock.getDataBlockCount();
+        freeBlockList.dirty = true;
 
         // Update super block
-        superBlock.setFreeBlockCount(freeBlockList.freeBlock.getCount());
-        System.arraycopy(freeBlockList.freeBlock.getList(), 0, superBlock.getFreeBlockList(), 0, FREE_BLOCK_LIST_SIZE);
+        FreeBlock first = freeBlockList.toFreeBlocks().get(0);
+        superBlock.setFreeBlockCount(first.getCount());
+        System.arraycopy(first.getList(), 0, superBlock.getFreeBlockList(), 0, FREE_BLOCK_LIST_SIZE);
         superBlock.setDirty(true);
         return freeBlockList;
     }
 
     public static FreeBlockList readFreeBlockList(SuperBlock superBlock, DiskInterface disk) {
         FreeBlockList freeBlockList = new FreeBlockList(superBlock, disk);
-        freeBlockList.freeBlock = FreeBlock.from(superBlock, disk);
+        Set<Integer> listBlocks = new HashSet<>();
+        FreeBlock freeBlock = FreeBlock.from(superBlock);
+        while (true) {
+            for (int i = 1; i < min(freeBlock.getCount(), FREE_BLOCK_LIST_SIZE); i++) {
+                freeBlockList.add(freeBlock.getFreeBlockNumber(i));
+            }
+            int next = freeBlock.getFreeBlockNumber(0);
+            if (next == 0) {
+                break;
+            }
+            if (!listBlocks.add(next)) {
+                throw new FreeBlockListException(String.format("Free block list loops back to block %d", next));
+            }
+            freeBlockList.add(next);
+            try {
+                freeBlock = FreeBlock.from(next, disk.getBlock(next));
+            } catch (IOException e) {
+                throw new BlockUnavailableException(next, e);
+            }
+        }
         return freeBlockList;
     }
 
     public FreeBlockList(SuperBlock superBlock, DiskInterface disk) {
         this.superBlock = superBlock;
         this.disk = disk;
+        this.free = new BitSet(superBlock.getBlockCount());
+        this.lowestFree = superBlock.getFirstDataBlock();
     }
 
+    /**
+     * Write the free blocks back as a chain of lists, the first into the super block and the rest into free blocks.
+     */
     public void flush() {
         try {
-            freeBlock.flush(superBlock, disk);
+            for (FreeBlock freeBlock : toFreeBlocks()) {
+                freeBlock.flush(superBlock, disk);
+            }
         } catch (IOException e) {
              throw new FreeBlockListException("Failed to flush free block list", e);
         }
+        superBlock.setDirty(true);
+        dirty = false;
     }
 
     public void visit(FreeBlockNumberVisitor visitor) {
-        freeBlock.visit(visitor);
+        for (int blockNumber = free.nextSetBit(0); blockNumber >= 0; blockNumber = free.nextSetBit(blockNumber + 1)) {
+            visitor.visit(blockNumber);
+        }
+        strayEntries.stream().filter(blockNumber -> blockNumber != 0).forEach(visitor::visit);
     }
 
     public int getFreeBlockCount() {
-        return freeBlock.getFreeBlockCount()  - 1;
+        return freeCount + strayEntries.size();
+    }
+
+    public boolean isFree(int blockNumber) {
+        return blockNumber >= 0 && free.get(blockNumber);
+    }
+
+    /**
+     * Allocate from the first run of at least the given number of consecutive free blocks, until the reservation
+     * is released or used up. If there is no such run blocks are allocated lowest first as usual.
+     */
+    public void reserve(int blockCount) {
+        releaseReservation();
+        if (blockCount <= 0) {
+            return;
+        }
+        int start = free.nextSetBit(lowestFree);
+        while (start >= 0) {
+            int end = free.nextClearBit(start);
+            if (end - start >= blockCount) {
+                reservedFrom = start;
+                reservedTo = start + blockCount;
+                return;
+            }
+            start = free.nextSetBit(end);
+        }
+    }
+
+    public boolean isReserved() {
+        return reservedFrom >= 0 && reservedFrom < reservedTo;
+    }
+
+    public void releaseReservation() {
+        reservedFrom = -1;
+        reservedTo = -1;
     }
 
     public int getAvailableBlock() {
-        int blockNumber = freeBlock.takeNextFreeBlock();
-        freeBlock.flush(superBlock);
+        if (reservedFrom >= 0) {
+            int blockNumber = free.nextSetBit(reservedFrom);
+            if (blockNumber >= 0 && blockNumber < reservedTo) {
+                free.clear(blockNumber);
+                freeCount--;
+                reservedFrom = blockNumber + 1;
+                dirty = true;
+                return blockNumber;
+            }
+            releaseReservation();
+        }
+
+        int blockNumber = free.nextSetBit(lowestFree);
+        if (blockNumber < 0) {
+            throw new FreeBlockListException("No more blocks");
+        }
+        free.clear(blockNumber);
+        freeCount--;
+        lowestFree = blockNumber + 1;
+        dirty = true;
         return blockNumber;
     }
 
+    /**
+     * Make every data block that is not in use free, dropping whatever was read from the lists. The lists are laid
+     * out afresh when the free block list is flushed.
+     */
+    public void rebuild(IntPredicate inUse) {
+        releaseReservation();
+        free.clear();
+        strayEntries.clear();
+        freeCount = 0;
+        for (int blockNumber = superBlock.getFirstDataBlock(); blockNumber < superBlock.getBlockCount(); blockNumber++) {
+            if (!inUse.test(blockNumber)) {
+                free.set(blockNumber);
+                freeCount++;
+            }
+        }
+        lowestFree = superBlock.getFirstDataBlock();
+        dirty = true;
+    }
+
     public void returnBlock(int block) {
-        freeBlock.returnBlock(block);
-        freeBlock.flush(superBlock);
+        if (!isDataBlock(block)) {
+            throw new FreeBlockListException(String.format("Block %d is not a data block", block));
+        }
+        if (!free.get(block)) {
+            free.set(block);
+            freeCount++;
+            lowestFree = min(lowestFree, block);
+            dirty = true;
+        }
+    }
+
+    private void add(int blockNumber) {
+        if (isDataBlock(blockNumber) && !free.get(blockNumber)) {
+            free.set(blockNumber);
+            freeCount++;
+            lowestFree = min(lowestFree, blockNumber);
+        } else {
+            strayEntries.add(blockNumber);
+        }
+    }
+
+    private boolean isDataBlock(int blockNumber) {
+        return blockNumber >= superBlock.getFirstDataBlock() && blockNumber < superBlock.getBlockCount();
+    }
+
+    /**
+     * Lay the free blocks out as Cromix does, in ascending order so the lowest block is at the end of the first
+     * list, where it is taken from first. Each list holds up to 79 blocks and the block holding the next list.
+     * Stray entries are written back unchanged after the free blocks, so they are the last to be taken.
+     */
+    private List<FreeBlock> toFreeBlocks() {
+        List<FreeBlock> freeBlocks = new ArrayList<>();
+        FreeBlock freeBlock = new FreeBlock();
+        int blockNumber = free.nextSetBit(0);
+        int stray = 0;
+        while (true) {
+            freeBlocks.add(freeBlock);
+            int entries = 0;
+            int strays = 0;
+            int[] taken = new int[FREE_BLOCK_LIST_SIZE - 1];
+            while (entries < taken.length && blockNumber >= 0) {
+                taken[entries++] = blockNumber;
+                blockNumber = free.nextSetBit(blockNumber + 1);
+            }
+            while (entries < taken.length && stray < strayEntries.size()) {
+                taken[entries++] = strayEntries.get(stray++);
+                strays++;
+            }
+
+            int nextBlockNumber = blockNumber;
+            if (blockNumber < 0 && stray < strayEntries.size()) {
+                // Only strays are left, the last free block of this list holds the next list instead
+                int last = entries - strays - 1;
+                if (last < 0) {
+                    throw new FreeBlockListException("No free block left to hold the rest of the free block list");
+                }
+                nextBlockNumber = taken[last];
+                System.arraycopy(taken, last + 1, taken, last, strays);
+                entries--;
+            }
+
+            for (int i = 0; i < entries; i++) {
+                freeBlock.getList()[entries - i] = taken[i];
+            }
+            freeBlock.setCount(entries + 1);
+            if (nextBlockNumber < 0) {
+                return freeBlocks;
+            }
+
+            FreeBlock next = new FreeBlock();
+            next.setBlockNumber(nextBlockNumber);
+            freeBlock.getList()[0] = nextBlockNumber;
+            freeBlock = next;
+            if (blockNumber >= 0) {
+                blockNumber = free.nextSetBit(blockNumber + 1);
+            }
+        }
     }
 }
@@ -2,12 +2,11 @@ package au.wildie.m68k.cromixfs.fs.cromix;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
 import au.wildie.m68k.cromixfs.fs.CromixTime;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 import static au.wildie.m68k.cromixfs.fs.CromixTime.TIME_SIZE;
 import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.*;
@@ -16,7 +15,7 @@ import static au.wildie.m68k.cromixfs.utils.BinUtils.*;
 
 @Getter
 @Setter
-public class Inode {
+public class Inode implements BlockMap {
     public static final int ACCESS_READ   = 0x01;            /* read access                  */
     public static final int ACCESS_EXEC   = 0x02;            /* execute access               */
     public static final int ACCESS_WRITE  = 0x04;            /* write access                 */
@@ -76,44 +75,186 @@ public class Inode {
 
     private boolean dirty = true;
 
+    // Where a change is registered, so a changed inode is held until it is written back
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private WriteBackCache writeBack;
+
     public static Inode from(byte[] raw) {
-        Inode inode = new Inode(0xFFFF & readWord(raw, INODE_NUMBER_OFFSET));
-        inode.parent = 0xFFFF & readWord(raw, INODE_PARENT_OFFSET);
-        inode.type = InodeType.from(0xFF & raw[INODE_TYPE_OFFSET]);
-        inode.owner = 0xFFFF & readWord(raw, INODE_OWNER_OFFSET);
-        inode.group = 0xFFFF & readWord(raw, INODE_GROUP_OFFSET);
+        return from(raw, 0);
+    }
+
+    /**
+     * Decode the inode at the given offset of an inode block.
+     */
+    public static Inode from(byte[] raw, int offset) {
+        Inode inode = new Inode(0xFFFF & readWord(raw, offset + INODE_NUMBER_OFFSET));
+        inode.parent = 0xFFFF & readWord(raw, offset + INODE_PARENT_OFFSET);
+        inode.type = InodeType.from(0xFF & raw[offset + INODE_TYPE_OFFSET]);
+        inode.owner = 0xFFFF & readWord(raw, offset + INODE_OWNER_OFFSET);
+        inode.group = 0xFFFF & readWord(raw, offset + INODE_GROUP_OFFSET);
         if (inode.type == CHARACTER_DEVICE || inode.type == BLOCK_DEVICE) {
-            inode.major = 0xFF & raw[INODE_DEV_MAJOR_OFFSET];
-            inode.minor = 0xFF & raw[INODE_DEV_MINOR_OFFSET];
+            inode.major = 0xFF & raw[offset + INODE_DEV_MAJOR_OFFSET];
+            inode.minor = 0xFF & raw[offset + INODE_DEV_MINOR_OFFSET];
         } else {
-            inode.directoryEntryCount = 0xFFFF & readWord(raw, INODE_DIR_ENTRY_COUNT_OFFSET);
+            inode.directoryEntryCount = 0xFFFF & readWord(raw, offset + INODE_DIR_ENTRY_COUNT_OFFSET);
         }
-        inode.fileSize = readDWord(raw, INODE_FILE_SIZE_OFFSET);
-        inode.usedBlockCount = readDWord(raw, INODE_USED_BLOCKS_OFFSET);
-        inode.ownerPermission = 0xFF & raw[INODE_PERMISSION_OWNER_OFFSET];
-        inode.groupPermission = 0xFF & raw[INODE_PERMISSION_GROUP_OFFSET];
-        inode.otherPermission = 0xFF & raw[INODE_PERMISSION_OTHER_OFFSET];
-        inode.links = 0xFF & raw[INODE_LINKS_OFFSET];
-        inode.created = CromixTime.from(Arrays.copyOfRange(raw, INODE_CREATED_OFFSET, INODE_CREATED_OFFSET + TIME_SIZE));
-        inode.modified = CromixTime.from(Arrays.copyOfRange(raw, INODE_MODIFIED_OFFSET, INODE_MODIFIED_OFFSET + TIME_SIZE));
-        inode.accessed = CromixTime.from(Arrays.copyOfRange(raw, INODE_ACCESSED_OFFSET, INODE_ACCESSED_OFFSET + TIME_SIZE));
-        inode.dumped = CromixTime.from(Arrays.copyOfRange(raw, INODE_DUMPED_OFFSET, INODE_DUMPED_OFFSET + TIME_SIZE));
+        inode.fileSize = readDWord(raw, offset + INODE_FILE_SIZE_OFFSET);
+        inode.usedBlockCount = readDWord(raw, offset + INODE_USED_BLOCKS_OFFSET);
+        inode.ownerPermission = 0xFF & raw[offset + INODE_PERMISSION_OWNER_OFFSET];
+        inode.groupPermission = 0xFF & raw[offset + INODE_PERMISSION_GROUP_OFFSET];
+        inode.otherPermission = 0xFF & raw[offset + INODE_PERMISSION_OTHER_OFFSET];
+        inode.links = 0xFF & raw[offset + INODE_LINKS_OFFSET];
+        inode.created = CromixTime.from(raw, offset + INODE_CREATED_OFFSET);
+        inode.modified = CromixTime.from(raw, offset + INODE_MODIFIED_OFFSET);
+        inode.accessed = CromixTime.from(raw, offset + INODE_ACCESSED_OFFSET);
+        inode.dumped = CromixTime.from(raw, offset + INODE_DUMPED_OFFSET);
 
         for (int i = 0; i < INODE_BLOCKS; i++) {
-            inode.blocks[i] = readDWord(raw, INODE_POINTERS_OFFSET + i * 4);
+            inode.blocks[i] = readDWord(raw, offset + INODE_POINTERS_OFFSET + i * 4);
         }
-
-//        if (inode.type != UNUSED && inode.type != UNKNOWN) {
-//            inode.dump(raw, INODE_CREATED_OFFSET);
-//        }
         return inode;
     }
 
+    /**
+     * The number of pointer blocks needed to address a file of the given number of data blocks.
+     */
+    public static int getPointerBlockCount(int dataBlocks) {
+        int remaining = dataBlocks - INDIRECT_1_BLOCK;
+        if (remaining <= 0) {
+            return 0;
+        }
+        int pointerBlocks = 1;
+        remaining -= BLOCK_POINTER_COUNT;
+        if (remaining <= 0) {
+            return pointerBlocks;
+        }
+        int doubleBlocks = Math.min(remaining, BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT);
+        pointerBlocks += 1 + (doubleBlocks + BLOCK_POINTER_COUNT - 1) / BLOCK_POINTER_COUNT;
+        remaining -= doubleBlocks;
+        if (remaining <= 0) {
+            return pointerBlocks;
+        }
+        return pointerBlocks + 1
+                + (remaining + BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT - 1) / (BLOCK_POINTER_COUNT * BLOCK_POINTER_COUNT)
+                + (remaining + BLOCK_POINTER_COUNT - 1) / BLOCK_POINTER_COUNT;
+    }
+
     public Inode(int number) {
         this.number = number;
         this.type = UNUSED;
     }
 
+    /**
+     * Register changes to this inode with the write back cache, changes are written back when the cache is
+     * committed even if the inode is no longer referenced.
+     */
+    void track(WriteBackCache writeBack) {
+        this.writeBack = writeBack;
+    }
+
+    public void setNumber(int number) {
+        this.number = number;
+        changed();
+    }
+
+    public void setParent(int parent) {
+        this.parent = parent;
+        changed();
+    }
+
+    public void setType(InodeType type) {
+        this.type = type;
+        changed();
+    }
+
+    public void setOwner(int owner) {
+        this.owner = owner;
+        changed();
+    }
+
+    public void setGroup(int group) {
+        this.group = group;
+        changed();
+    }
+
+    public void setDirectoryEntryCount(int directoryEntryCount) {
+        this.directoryEntryCount = directoryEntryCount;
+        changed();
+    }
+
+    public void setFileSize(int fileSize) {
+        this.fileSize = fileSize;
+        changed();
+    }
+
+    public void setUsedBlockCount(int usedBlockCount) {
+        this.usedBlockCount = usedBlockCount;
+        changed();
+    }
+
+    public void setMajor(int major) {
+        this.major = major;
+        changed();
+    }
+
+    public void setMinor(int minor) {
+        this.minor = minor;
+        changed();
+    }
+
+    public void setOwnerPermission(int ownerPermission) {
+        this.ownerPermission = ownerPermission;
+        changed();
+    }
+
+    public void setGroupPermission(int groupPermission) {
+        this.groupPermission = groupPermission;
+        changed();
+    }
+
+    public void setOtherPermission(int otherPermission) {
+        this.otherPermission = otherPermission;
+        changed();
+    }
+
+    public void setLinks(int links) {
+        this.links = links;
+        changed();
+    }
+
+    public void setCreated(CromixTime created) {
+        this.created = created;
+        changed();
+    }
+
+    public void setModified(CromixTime modified) {
+        this.modified = modified;
+        changed();
+    }
+
+    public void setAccessed(CromixTime accessed) {
+        this.accessed = accessed;
+        changed();
+    }
+
+    public void setDumped(CromixTime dumped) {
+        this.dumped = dumped;
+        changed();
+    }
+
+    public void setBlocks(int[] blocks) {
+        this.blocks = blocks;
+        changed();
+    }
+
+    private void changed() {
+        dirty = true;
+        if (writeBack != null) {
+            writeBack.markDirty(this);
+        }
+    }
+
     public void toBytes(byte[] data, int offset) {
         writeWord(number, data, offset + INODE_NUMBER_OFFSET);
         writeWord(parent, data, offset + INODE_PARENT_OFFSET);
@@ -144,130 +285,64 @@ public class Inode {
     }
 
     public int countUsedBlocks(DiskInterface disk) {
-        AtomicInteger used = new AtomicInteger();
-        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-            if (blocks[i] != 0) {
-                used.getAndIncrement();
+        int[] used = new int[1];
+        new BlockMapWalker(disk).walk(this, new BlockMapVisitor() {
+            @Override
+            public void visitDataBlock(int blockNumber) {
+                used[0]++;
             }
-        }
-
-        if (blocks[INDIRECT_1_BLOCK] != 0) {
-            used.addAndGet((int) PointerBlock.from(blocks[INDIRECT_1_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .count() + 1);
-        }
 
-        if (blocks[INDIRECT_2_BLOCK] != 0) {
-            used.getAndIncrement();
-            PointerBlock.from(blocks[INDIRECT_2_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .peek(blockNumber -> used.getAndIncrement())
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .forEach(blockNumber -> used.getAndIncrement());
-        }
-
-        if (blocks[INDIRECT_3_BLOCK] != 0) {
-            used.getAndIncrement();
-            PointerBlock.from(blocks[INDIRECT_3_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .peek(blockNumber -> used.getAndIncrement())
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .peek(blockNumber -> used.getAndIncrement())
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .forEach(blockNumber -> used.getAndIncrement());
-        }
-
-        return used.get();
+            @Override
+            public void visitPointerBlock(int blockNumber, int level) {
+                used[0]++;
+            }
+        });
+        return used[0];
     }
 
     public List<Integer> getDataBlocks(DiskInterface disk) {
-        List<Integer> dataBlocks = new ArrayList<>();
-        for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
-            if (blocks[i] != 0) {
-                dataBlocks.add(blocks[i]);
-            }
-        }
-
-        if (blocks[INDIRECT_1_BLOCK] != 0) {
-            dataBlocks.addAll(PointerBlock.from(blocks[INDIRECT_1_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .collect(Collectors.toList()));
-        }
-
-        if (blocks[INDIRECT_2_BLOCK] != 0) {
-            dataBlocks.addAll(PointerBlock.from(blocks[INDIRECT_2_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .collect(Collectors.toList()));
-        }
-
-        if (blocks[INDIRECT_3_BLOCK] != 0) {
-            dataBlocks.addAll(PointerBlock.from(blocks[INDIRECT_3_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .map(blockNumber -> PointerBlock.from(blockNumber, disk))
-                    .flatMap(pointerBlock -> pointerBlock.getPointerList().stream())
-                    .filter(blockNumber -> blockNumber != 0)
-                    .collect(Collectors.toList()));
-        }
+        return getDataBlocks(new BlockMapWalker(disk));
+    }
 
+    protected List<Integer> getDataBlocks(BlockMapWalker walker) {
+        List<Integer> dataBlocks = new ArrayList<>();
+        walker.walk(this, dataBlocks::add);
         return dataBlocks;
     }
 
-    protected void deleteFileBlocks(DiskInterface disk, FreeBlockList freeBlockList) {
-        List<Integer> blockNumbers = new ArrayList<>(getDataBlocks(disk));
-
-        // Return any pointer blocks
-        if (blocks[INDIRECT_1_BLOCK] != 0) {
-            blockNumbers.add(blocks[INDIRECT_1_BLOCK]);
-        }
-
-        if (blocks[INDIRECT_2_BLOCK] != 0) {
-            blockNumbers.addAll(PointerBlock.from(blocks[INDIRECT_2_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .collect(Collectors.toList()));
-            blockNumbers.add(blocks[INDIRECT_2_BLOCK]);
-        }
+    protected void deleteFileBlocks(WriteBackCache writeBack, FreeBlockList freeBlockList) {
+        // Collect the blocks first, the pointer blocks are still needed for the walk
+        List<Integer> blockNumbers = new ArrayList<>();
+        new BlockMapWalker(writeBack).walk(this, new BlockMapVisitor() {
+            @Override
+            public void visitDataBlock(int blockNumber) {
+                blockNumbers.add(blockNumber);
+            }
 
-        if (blocks[INDIRECT_3_BLOCK] != 0) {
-            PointerBlock.from(blocks[INDIRECT_3_BLOCK], disk).getPointerList().stream()
-                    .filter(blockNumber -> blockNumber != 0)
-                    .forEach(pb -> {
-                        blockNumbers.addAll(PointerBlock.from(pb, disk).getPointerList().stream()
-                                .filter(blockNumber -> blockNumber != 0)
-                                .collect(Collectors.toList()));
-                        blockNumbers.add(pb);
-                    });
-            blockNumbers.add(blocks[INDIRECT_3_BLOCK]);
-        }
+            @Override
+            public void visitPointerBlock(int blockNumber, int level) {
+                blockNumbers.add(blockNumber);
+            }
+        });
 
         // Return all the blocks
-        blockNumbers.stream().sorted(Collections.reverseOrder()).forEach(freeBlockList::returnBlock);
-        freeBlockList.flush();
+        blockNumbers.forEach(writeBack::release);
+        blockNumbers.forEach(freeBlockList::returnBlock);
 
         for (int i = 0; i <= INDIRECT_3_BLOCK; i++) {
             if (blocks[i] != 0) {
                 blocks[i] = 0;
             }
         }
+        changed();
     }
 
-    public void addBlock(int blockNumber, DiskInterface disk, FreeBlockList freeBlockList) {
+    public void addBlock(int blockNumber, WriteBackCache writeBack, FreeBlockList freeBlockList) {
         for (int i = 0; i < INDIRECT_1_BLOCK; i++) {
             if (blocks[i] == 0) {
                 blocks[i] = blockNumber;
                 usedBlockCount++;
-                dirty = true;
+                changed();
                 return;
             }
         }
@@ -278,12 +353,12 @@ public class Inode {
             blocks[INDIRECT_1_BLOCK] = freeBlockList.getAvailableBlock();
             pointerBlock = new PointerBlock(blocks[INDIRECT_1_BLOCK]);
         } else {
-            pointerBlock = PointerBlock.from(blocks[INDIRECT_1_BLOCK], disk);
+            pointerBlock = writeBack.getPointerBlock(blocks[INDIRECT_1_BLOCK]);
         }
         if (pointerBlock.addPointer(blockNumber)) {
-            pointerBlock.flush(disk);
+            writeBack.markDirty(pointerBlock);
             usedBlockCount++;
-            dirty = true;
+            changed();
             return;
         }
 
@@ -292,16 +367,16 @@ public class Inode {
             blocks[INDIRECT_2_BLOCK] = freeBlockList.getAvailableBlock();
             pointerBlock = new PointerBlock(blocks[INDIRECT_2_BLOCK]);
         } else {
-            pointerBlock = PointerBlock.from(blocks[INDIRECT_2_BLOCK], disk);
+            pointerBlock = writeBack.getPointerBlock(blocks[INDIRECT_2_BLOCK]);
         }
         // Try to add it to an existing indirect block
         for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
             if (pointerBlock.getPointers()[i] != 0) {
-                PointerBlock pointer2Block = PointerBlock.from(pointerBlock.getPointers()[i], disk);
+                PointerBlock pointer2Block = writeBack.getPointerBlock(pointerBlock.getPointers()[i]);
                 if (pointer2Block.addPointer(blockNumber)) {
-                    pointer2Block.flush(disk);
+                    writeBack.markDirty(pointer2Block);
                     usedBlockCount++;
-                    dirty = true;
+                    changed();
                     return;
                 }
             }
@@ -311,11 +386,11 @@ public class Inode {
             if (pointerBlock.getPointers()[i] == 0) {
                 PointerBlock pointer2Block = new PointerBlock(freeBlockList.getAvailableBlock());
                 pointerBlock.getPointers()[i] = pointer2Block.getBlockNumber();
-                pointerBlock.flush(disk);
+                writeBack.markDirty(pointerBlock);
                 if (pointer2Block.addPointer(blockNumber)) {
-                    pointer2Block.flush(disk);
+                    writeBack.markDirty(pointer2Block);
                     usedBlockCount++;
-                    dirty = true;
+                    changed();
                     return;
                 }
             }
@@ -326,19 +401,19 @@ public class Inode {
             blocks[INDIRECT_3_BLOCK] = freeBlockList.getAvailableBlock();
             pointerBlock = new PointerBlock(blocks[INDIRECT_3_BLOCK]);
         } else {
-            pointerBlock = PointerBlock.from(blocks[INDIRECT_3_BLOCK], disk);
+            pointerBlock = writeBack.getPointerBlock(blocks[INDIRECT_3_BLOCK]);
         }
         // Try to add it to an existing indirect block
         for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
             if (pointerBlock.getPointers()[i] != 0) {
-                PointerBlock pointer2Block = PointerBlock.from(pointerBlock.getPointers()[i], disk);
+                PointerBlock pointer2Block = writeBack.getPointerBlock(pointerBlock.getPointers()[i]);
                 for (int j = 0; j < BLOCK_POINTER_COUNT; j++) {
                     if (pointer2Block.getPointers()[j] != 0) {
-                        PointerBlock pointer3Block = PointerBlock.from(pointer2Block.getPointers()[j], disk);
+                        PointerBlock pointer3Block = writeBack.getPointerBlock(pointer2Block.getPointers()[j]);
                         if (pointer3Block.addPointer(blockNumber)) {
-                            pointer3Block.flush(disk);
+                            writeBack.markDirty(pointer3Block);
                             usedBlockCount++;
-                            dirty = true;
+                            changed();
                             return;
                         }
                     }
@@ -347,11 +422,11 @@ public class Inode {
                     if (pointer2Block.getPointers()[j] == 0) {
                         PointerBlock pointer3Block = new PointerBlock(freeBlockList.getAvailableBlock());
                         pointer2Block.getPointers()[i] = pointer3Block.getBlockNumber();
-                        pointer2Block.flush(disk);
+                        writeBack.markDirty(pointer2Block);
                         if (pointer3Block.addPointer(blockNumber)) {
-                            pointer3Block.flush(disk);
+                            writeBack.markDirty(pointer3Block);
                             usedBlockCount++;
-                            dirty = true;
+                            changed();
                             return;
                         }
                     }
@@ -362,16 +437,16 @@ public class Inode {
             if (pointerBlock.getPointers()[i] == 0) {
                 PointerBlock pointer2Block = new PointerBlock(freeBlockList.getAvailableBlock());
                 pointerBlock.getPointers()[i] = pointer2Block.getBlockNumber();
-                pointerBlock.flush(disk);
+                writeBack.markDirty(pointerBlock);
 
                 PointerBlock pointer3Block = new PointerBlock(freeBlockList.getAvailableBlock());
                 pointer2Block.getPointers()[0] = pointer3Block.getBlockNumber();
-                pointer2Block.flush(disk);
+                writeBack.markDirty(pointer2Block);
 
                 pointer3Block.getPointers()[0] = blockNumber;
-                pointer3Block.flush(disk);
+                writeBack.markDirty(pointer3Block);
                 usedBlockCount++;
-                dirty = true;
+                changed();
                 return;
             }
         }
@@ -388,12 +463,15 @@ public class Inode {
 
     public void incrementDirectoryEntryCount() {
         directoryEntryCount++;
+        changed();
     }
 
     public void incrementUsedBlockCount() {
         usedBlockCount++;
+        changed();
     }
 
+    @Override
     public int getBlockNumber(int blockIndex) {
         return blocks[blockIndex];
     }
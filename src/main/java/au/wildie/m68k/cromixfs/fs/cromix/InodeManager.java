@@ -2,36 +2,51 @@ package au.wildie.m68k.cromixfs.fs.cromix;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
 import au.wildie.m68k.cromixfs.fs.CromixTime;
+import lombok.AccessLevel;
 import lombok.Getter;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
 import java.util.stream.Collectors;
 
 import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
 import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.DIRECTORY;
 import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.UNUSED;
 import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_INODE_LIST_SIZE;
-import static java.lang.Integer.min;
 
+/**
+ * The inode table. Inode blocks are decoded on demand, when one of their inodes is first referenced, and a bounded
+ * number of decoded blocks are kept. An inode that is still referenced elsewhere keeps its identity when its block
+ * is dropped and read again, so there is only ever one instance of each inode. A changed inode is held by the
+ * write back cache until it is committed.
+ */
 @Getter
 public class InodeManager {
+    public static final int DEFAULT_CACHED_BLOCKS = 256;
+
     private final SuperBlock superBlock;
     private final DiskInterface disk;
     private final FreeBlockList freeBlockList;
-    private List<Inode> allInodes;
+    private final List<Inode> allInodes = new InodeList();
+    private final WriteBackCache writeBack;
+    private int blockLoads;
+
+    @Getter(AccessLevel.NONE)
+    private final Map<Integer, Inode[]> cachedBlocks;
+    @Getter(AccessLevel.NONE)
+    private final Map<Integer, InodeReference> liveInodes = new HashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final ReferenceQueue<Inode> released = new ReferenceQueue<>();
 
     public static InodeManager read(SuperBlock superBlock, DiskInterface disk, FreeBlockList freeBlockList) {
-        InodeManager manager = new InodeManager(superBlock, disk, freeBlockList);
-        manager.readAllInodes();
-        return manager;
+        return new InodeManager(superBlock, disk, freeBlockList);
     }
 
     public static InodeManager create(SuperBlock superBlock, DiskInterface disk, FreeBlockList freeBlockList) {
         InodeManager manager = new InodeManager(superBlock, disk, freeBlockList);
-        manager.allInodes = new ArrayList<>();
         for (int i = 0; i < superBlock.getInodeCount(); i++) {
             Inode inode = new Inode(i + 1);
             if (inode.getNumber() == 1) {
@@ -47,69 +62,80 @@ public class InodeManager {
                 inode.setModified(CromixTime.now());
                 inode.setAccessed(CromixTime.now());
             }
-            manager.allInodes.add(inode);
+            manager.flush(inode);
         }
 
         return manager;
     }
 
     public InodeManager(SuperBlock superBlock, DiskInterface disk, FreeBlockList freeBlockList) {
+        this(superBlock, disk, freeBlockList, DEFAULT_CACHED_BLOCKS);
+    }
+
+    public InodeManager(SuperBlock superBlock, DiskInterface disk, FreeBlockList freeBlockList, int cachedBlockCount) {
         this.superBlock = superBlock;
         this.disk = disk;
         this.freeBlockList = freeBlockList;
+        this.writeBack = new WriteBackCache(superBlock, disk, this::flush);
+        this.cachedBlocks = new LinkedHashMap<Integer, Inode[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Inode[]> eldest) {
+                return size() > cachedBlockCount;
+            }
+        };
     }
 
     public int getLastInodeNumber() {
         return superBlock.getInodeCount() + 1;
     }
 
+    public int getCachedBlockCount() {
+        return cachedBlocks.size();
+    }
+
     public void flush(Inode inode) {
 //        System.out.printf("Flush inode %d\n", inode.getNumber());
         int blockNumber = superBlock.getFirstInodeBlock() + ((inode.getNumber() - 1) / INODES_PER_BLOCK);
         try {
             byte[] data = disk.getBlock(blockNumber);
             inode.toBytes(data, (superBlock.getBlockSize() / INODES_PER_BLOCK) * ((inode.getNumber() - 1) % INODES_PER_BLOCK));
+            disk.writeBlock(blockNumber, data);
         } catch (IOException e) {
             throw new BlockUnavailableException(blockNumber, e);
         }
     }
 
-    public void flushAll() {
-        for (int i = 0; i < superBlock.getInodeCount() / INODES_PER_BLOCK; i++) {
-            int blockNumber = superBlock.getFirstInodeBlock() + i;
-            try {
-                byte[] block = disk.getBlock(blockNumber);
-                for (int j = 0; j < INODES_PER_BLOCK; j++) {
-                    Inode inode = allInodes.get(i * INODES_PER_BLOCK + j);
-                    inode.toBytes(block, (superBlock.getBlockSize() / INODES_PER_BLOCK) * j);
-                }
-            } catch (IOException e) {
-                throw new BlockUnavailableException(blockNumber, e);
-            }
+    public void markDirty(Inode inode) {
+        writeBack.markDirty(inode);
+    }
+
+    public void commit() {
+        if (freeBlockList.isDirty()) {
+            freeBlockList.flush();
         }
+        writeBack.commit();
     }
 
-    protected void readAllInodes() {
-        allInodes = new ArrayList<>();
-        int blocks = superBlock.getInodeCount() / INODES_PER_BLOCK;
-        for (int i = 0; i < blocks; i++) {
-            int blockNumber = superBlock.getFirstInodeBlock() + i;
-            try {
-                byte[] block = disk.getBlock(blockNumber);
-                for (int j = 0; j < INODES_PER_BLOCK; j++) {
-                    allInodes.add(Inode.from(Arrays.copyOfRange(block, j * INODE_LENGTH, j * INODE_LENGTH + INODE_LENGTH)));
-                }
-            } catch (IOException e) {
-                throw new BlockUnavailableException(blockNumber, e);
+    /**
+     * Write back every inode that is in memory, inodes that have not been read are already on disk.
+     */
+    public void flushAll() {
+        expungeReleased();
+        for (InodeReference reference : new ArrayList<>(liveInodes.values())) {
+            Inode inode = reference.get();
+            if (inode != null) {
+                flush(inode);
             }
         }
     }
 
     public Inode getAvailableInode() {
         if (superBlock.getFreeInodeCount() == 0) {
-            List<Inode> free = getAllInodes().stream().filter(inode -> inode.getType() == UNUSED).collect(Collectors.toList());
-            int freeInodes = min(FREE_INODE_LIST_SIZE, free.size());
-            for (int i = 0; i < freeInodes; i++) {
+            List<Inode> free = getAllInodes().stream()
+                    .filter(inode -> inode.getType() == UNUSED)
+                    .limit(FREE_INODE_LIST_SIZE)
+                    .collect(Collectors.toList());
+            for (int i = 0; i < free.size(); i++) {
                 superBlock.getFreeInodeList()[FREE_INODE_LIST_SIZE - i - 1] = free.get(i).getNumber();
                 superBlock.incrementFreeInodeCount();
             }
@@ -117,21 +143,112 @@ public class InodeManager {
 
         int inodeNumber = superBlock.getFreeInodeList()[superBlock.getFreeInodeCount() - 1];
         superBlock.decrementFreeInodeCount();
-        superBlock.flush(disk);
+        writeBack.markDirty(superBlock);
         return getInode(inodeNumber);
     }
 
+    /**
+     * Inodes are stored in number order, so inode n is at index n - 1. The number recorded in the
+     * inode itself must agree, otherwise the inode table is damaged and the lookup fails.
+     */
     protected Inode getInode(int inodeNumber) {
-        if (inodeNumber == 0) {
+        if (inodeNumber < 1 || inodeNumber > allInodes.size()) {
+            throw new InodeException(inodeNumber);
+        }
+        Inode inode = allInodes.get(inodeNumber - 1);
+        if (inode.getNumber() != inodeNumber) {
             throw new InodeException(inodeNumber);
         }
-        return getAllInodes().stream()
-                .filter(iNode -> iNode.getNumber() == inodeNumber)
-                .findFirst()
-                .orElseThrow(() -> new InodeException(inodeNumber));
+        return inode;
+    }
+
+    /**
+     * Visit every inode through a view of the inode table as it is on disk, changes must have been committed.
+     */
+    public void scanInodes(InodeViewVisitor visitor) {
+        InodeView view = new InodeView();
+        int inodeBlocks = allInodes.size() / INODES_PER_BLOCK;
+        for (int i = 0; i < inodeBlocks; i++) {
+            int blockNumber = superBlock.getFirstInodeBlock() + i;
+            byte[] block;
+            try {
+                block = disk.getBlock(blockNumber);
+            } catch (IOException e) {
+                throw new BlockUnavailableException(blockNumber, e);
+            }
+            for (int j = 0; j < INODES_PER_BLOCK; j++) {
+                visitor.visit(i * INODES_PER_BLOCK + j, view.wrap(block, j));
+            }
+        }
     }
 
     public void addBlock(Inode entryInode, int blockNumber) {
-        entryInode.addBlock(blockNumber, disk, freeBlockList);
+        entryInode.addBlock(blockNumber, writeBack, freeBlockList);
+    }
+
+    private Inode getInodeAt(int index) {
+        Inode[] inodes = cachedBlocks.get(index / INODES_PER_BLOCK);
+        if (inodes == null) {
+            inodes = readInodeBlock(index / INODES_PER_BLOCK);
+            cachedBlocks.put(index / INODES_PER_BLOCK, inodes);
+        }
+        return inodes[index % INODES_PER_BLOCK];
+    }
+
+    private Inode[] readInodeBlock(int inodeBlock) {
+        expungeReleased();
+        int blockNumber = superBlock.getFirstInodeBlock() + inodeBlock;
+        try {
+            byte[] block = disk.getBlock(blockNumber);
+            Inode[] inodes = new Inode[INODES_PER_BLOCK];
+            for (int j = 0; j < INODES_PER_BLOCK; j++) {
+                int index = inodeBlock * INODES_PER_BLOCK + j;
+                InodeReference live = liveInodes.get(index);
+                inodes[j] = live == null ? null : live.get();
+                if (inodes[j] == null) {
+                    inodes[j] = Inode.from(block, j * INODE_LENGTH);
+                    inodes[j].track(writeBack);
+                    liveInodes.put(index, new InodeReference(index, inodes[j], released));
+                }
+            }
+            blockLoads++;
+            return inodes;
+        } catch (IOException e) {
+            throw new BlockUnavailableException(blockNumber, e);
+        }
+    }
+
+    private void expungeReleased() {
+        Reference<? extends Inode> reference;
+        while ((reference = released.poll()) != null) {
+            liveInodes.remove(((InodeReference) reference).index, reference);
+        }
+    }
+
+    private static class InodeReference extends WeakReference<Inode> {
+        private final int index;
+
+        InodeReference(int index, Inode inode, ReferenceQueue<Inode> queue) {
+            super(inode, queue);
+            this.index = index;
+        }
+    }
+
+    /**
+     * All the inodes, in number order, read through the table so a full scan does not keep them all in memory.
+     */
+    private class InodeList extends AbstractList<Inode> implements RandomAccess {
+        @Override
+        public Inode get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException(String.format("Inode index %d, inode count %d", index, size()));
+            }
+            return getInodeAt(index);
+        }
+
+        @Override
+        public int size() {
+            return (superBlock.getInodeCount() / INODES_PER_BLOCK) * INODES_PER_BLOCK;
+        }
     }
 }
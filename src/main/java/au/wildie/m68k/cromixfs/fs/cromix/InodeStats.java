@@ -31,8 +31,8 @@ public class InodeStats {
         freeListSize = FREE_INODE_LIST_SIZE;
     }
 
-    public void countFreeList(Inode inode) {
-        if (inode.getType() == UNUSED) {
+    public void countFreeList(InodeType type) {
+        if (type == UNUSED) {
             freeInodeListAvailable++;
         } else {
             freeInodeListUsed++;
@@ -40,7 +40,11 @@ public class InodeStats {
     }
 
     public void countUsage(Inode inode) {
-        switch (inode.getType()) {
+        countUsage(inode.getType());
+    }
+
+    public void countUsage(InodeType type) {
+        switch (type) {
             case UNUSED:
                 freeInodes++;
                 break;
@@ -65,6 +69,18 @@ public class InodeStats {
         }
     }
 
+    public void add(InodeStats other) {
+        freeInodes += other.freeInodes;
+        fileInodes += other.fileInodes;
+        directoryInodes += other.directoryInodes;
+        deviceInodes += other.deviceInodes;
+        pipeInodes += other.pipeInodes;
+        sharedTextInodes += other.sharedTextInodes;
+        errorInodes += other.errorInodes;
+        freeInodeListUsed += other.freeInodeListUsed;
+        freeInodeListAvailable += other.freeInodeListAvailable;
+    }
+
     public void print(PrintStream out) {
         out.print("\nInodes:\n");
         out.printf("  Directory:       %5d\n", directoryInodes);
@@ -0,0 +1,66 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import java.nio.ByteBuffer;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
+import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.BLOCK_DEVICE;
+import static au.wildie.m68k.cromixfs.fs.cromix.InodeType.CHARACTER_DEVICE;
+
+/**
+ * A read only view of an inode in an inode block. Fields are decoded from the block bytes as they are read and the
+ * view is moved from inode to inode, so scanning the inode table does not allocate.
+ */
+public class InodeView implements BlockMap {
+    private ByteBuffer buffer;
+    private int offset;
+
+    public InodeView wrap(byte[] block, int slot) {
+        if (buffer == null || buffer.array() != block) {
+            buffer = ByteBuffer.wrap(block);
+        }
+        offset = slot * INODE_LENGTH;
+        return this;
+    }
+
+    public int getNumber() {
+        return readWord(INODE_NUMBER_OFFSET);
+    }
+
+    public int getParent() {
+        return readWord(INODE_PARENT_OFFSET);
+    }
+
+    public InodeType getType() {
+        return InodeType.from(readByte(INODE_TYPE_OFFSET));
+    }
+
+    public int getLinks() {
+        return readByte(INODE_LINKS_OFFSET);
+    }
+
+    public int getFileSize() {
+        return buffer.getInt(offset + INODE_FILE_SIZE_OFFSET);
+    }
+
+    public int getUsedBlockCount() {
+        return buffer.getInt(offset + INODE_USED_BLOCKS_OFFSET);
+    }
+
+    public int getDirectoryEntryCount() {
+        InodeType type = getType();
+        return type == CHARACTER_DEVICE || type == BLOCK_DEVICE ? 0 : readWord(INODE_DIR_ENTRY_COUNT_OFFSET);
+    }
+
+    @Override
+    public int getBlockNumber(int blockIndex) {
+        return buffer.getInt(offset + INODE_POINTERS_OFFSET + blockIndex * 4);
+    }
+
+    private int readWord(int field) {
+        return 0xFFFF & buffer.getShort(offset + field);
+    }
+
+    private int readByte(int field) {
+        return 0xFF & buffer.get(offset + field);
+    }
+}
@@ -0,0 +1,8 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+public interface InodeViewVisitor {
+    /**
+     * The view is only valid until the visit returns.
+     */
+    void visit(int index, InodeView inode);
+}
@@ -4,38 +4,38 @@ import static au.wildie.m68k.cromixfs.utils.BinUtils.readDWord;
 import static au.wildie.m68k.cromixfs.utils.BinUtils.writeDWord;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
 import lombok.Getter;
+import lombok.Setter;
 
 @Getter
 public class PointerBlock {
     public static final int BLOCK_POINTER_COUNT = 0x80;
     private final int blockNumber;
-    private final Integer[] pointers = new Integer[BLOCK_POINTER_COUNT];
+    private final int[] pointers = new int[BLOCK_POINTER_COUNT];
+    @Setter
+    private boolean dirty;
 
     public static PointerBlock from(int blockNumber, DiskInterface disk) {
         try {
             PointerBlock block = new PointerBlock(blockNumber);
-            byte[] data = disk.getBlock(blockNumber);
-            for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
-                block.pointers[i] = readDWord(data, i * 4);
-            }
+            readPointers(disk.getBlock(blockNumber), block.pointers);
             return block;
         } catch (IOException e) {
             throw new BlockUnavailableException(blockNumber, e);
         }
     }
 
-    public PointerBlock(int blockNumber) {
-        this.blockNumber = blockNumber;
-        Arrays.fill(pointers, 0);
+    public static int[] readPointers(byte[] data, int[] pointers) {
+        for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
+            pointers[i] = readDWord(data, i * 4);
+        }
+        return pointers;
     }
 
-    public List<Integer> getPointerList() {
-        return Arrays.asList(pointers);
+    public PointerBlock(int blockNumber) {
+        this.blockNumber = blockNumber;
     }
 
     public void setPointer(int index, int blockNumber) {
@@ -62,6 +62,7 @@ public class PointerBlock {
             for (int i = 0; i < BLOCK_POINTER_COUNT; i++) {
                 writeDWord(pointers[i], data, i * 4);
             }
+            disk.writeBlock(blockNumber, data);
         } catch (IOException e) {
             throw new BlockUnavailableException(blockNumber, e);
         }
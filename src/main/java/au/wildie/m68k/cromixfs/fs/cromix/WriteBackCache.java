@@ -0,0 +1,118 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Filesystem structures that are changed while files are being added are marked dirty here, rather than being
+ * encoded into their disk blocks after every change. Directory and pointer blocks that have been looked up, and the
+ * directory indexes built from them, are held and handed back to later lookups until the changes are committed,
+ * when each dirty structure is encoded once.
+ */
+public class WriteBackCache {
+    private final SuperBlock superBlock;
+    private final DiskInterface disk;
+    private final Consumer<Inode> inodeWriter;
+
+    private final Map<Integer, DirectoryBlock> directoryBlocks = new HashMap<>();
+    private final Map<Integer, PointerBlock> pointerBlocks = new HashMap<>();
+    private final Map<Integer, Inode> dirtyInodes = new TreeMap<>();
+    private final Map<Integer, DirectoryIndex> directoryIndexes = new HashMap<>();
+
+    @Getter
+    private int encodeCount;
+
+    public WriteBackCache(SuperBlock superBlock, DiskInterface disk, Consumer<Inode> inodeWriter) {
+        this.superBlock = superBlock;
+        this.disk = disk;
+        this.inodeWriter = inodeWriter;
+    }
+
+    public DirectoryBlock getDirectoryBlock(int blockNumber) {
+        return directoryBlocks.computeIfAbsent(blockNumber, number -> DirectoryBlock.from(disk, number));
+    }
+
+    public PointerBlock getPointerBlock(int blockNumber) {
+        return pointerBlocks.computeIfAbsent(blockNumber, number -> PointerBlock.from(number, disk));
+    }
+
+    public DirectoryIndex getDirectoryIndex(Inode directory) {
+        return directoryIndexes.computeIfAbsent(directory.getNumber(), number -> DirectoryIndex.build(directory, this, superBlock.getBlockSize()));
+    }
+
+    public void markDirty(DirectoryBlock directoryBlock) {
+        directoryBlock.setDirty(true);
+        directoryBlocks.put(directoryBlock.getBlockNumber(), directoryBlock);
+    }
+
+    public void markDirty(PointerBlock pointerBlock) {
+        pointerBlock.setDirty(true);
+        pointerBlocks.put(pointerBlock.getBlockNumber(), pointerBlock);
+    }
+
+    public void markDirty(Inode inode) {
+        inode.setDirty(true);
+        dirtyInodes.put(inode.getNumber(), inode);
+    }
+
+    public void markDirty(SuperBlock superBlock) {
+        superBlock.setDirty(true);
+    }
+
+    /**
+     * Forget a block that has been returned to the free list, so it is not written over when it is reused.
+     */
+    public void release(int blockNumber) {
+        directoryBlocks.remove(blockNumber);
+        pointerBlocks.remove(blockNumber);
+    }
+
+    public boolean isDirty() {
+        return superBlock.isDirty()
+                || !dirtyInodes.isEmpty()
+                || directoryBlocks.values().stream().anyMatch(DirectoryBlock::isDirty)
+                || pointerBlocks.values().stream().anyMatch(PointerBlock::isDirty);
+    }
+
+    /**
+     * Encode everything that has been changed into its disk block and forget the blocks that have been looked up.
+     */
+    public void commit() {
+        for (DirectoryBlock directoryBlock : directoryBlocks.values()) {
+            if (directoryBlock.isDirty()) {
+                directoryBlock.flush(disk);
+                directoryBlock.setDirty(false);
+                encodeCount++;
+            }
+        }
+        directoryBlocks.clear();
+        directoryIndexes.clear();
+
+        for (PointerBlock pointerBlock : pointerBlocks.values()) {
+            if (pointerBlock.isDirty()) {
+                pointerBlock.flush(disk);
+                pointerBlock.setDirty(false);
+                encodeCount++;
+            }
+        }
+        pointerBlocks.clear();
+
+        for (Inode inode : dirtyInodes.values()) {
+            inodeWriter.accept(inode);
+            inode.setDirty(false);
+            encodeCount++;
+        }
+        dirtyInodes.clear();
+
+        if (superBlock.isDirty()) {
+            superBlock.flush(disk);
+            superBlock.setDirty(false);
+            encodeCount++;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package au.wildie.m68k.cromixfs.disk.cache;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
+import au.wildie.m68k.cromixfs.fs.cromix.CromixFileSystem;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CachedDiskTest {
+    private static final String IMD_TEST_FILE = "imd/848CR162.IMD";
+
+    @Test
+    public void lru() {
+        EvictionPolicy policy = new LRUEvictionPolicy();
+        policy.added(1);
+        policy.added(2);
+        policy.added(3);
+        policy.accessed(1);
+        assertThat(policy.victim(), is(2));
+        policy.removed(2);
+        assertThat(policy.victim(), is(3));
+    }
+
+    @Test
+    public void clock() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        policy.added(1);
+        policy.added(2);
+        policy.added(3);
+        policy.accessed(1);
+        policy.accessed(2);
+        assertThat(policy.victim(), is(3));
+        policy.removed(3);
+        policy.added(4);
+        // 1 and 2 have had their second chance
+        assertThat(policy.victim(), is(1));
+    }
+
+    @Test
+    public void list() throws IOException {
+        PrintStream quiet = new PrintStream(new NullOutputStream());
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(getClass().getClassLoader().getResourceAsStream(IMD_TEST_FILE), quiet), quiet);
+
+        for (CachedDisk cached : new CachedDisk[] {CachedDisk.lru(disk, 8), CachedDisk.clock(disk, 8)}) {
+            new CromixFileSystem(cached).list(quiet);
+            assertThat(cached.getEvictions() > 0, is(true));
+            assertThat(cached.getMisses() - cached.getEvictions() <= cached.getCapacity(), is(true));
+
+            // Blocks are the disk's own, so changes are not lost when they are evicted
+            assertThat(cached.getBlock(20), sameInstance(disk.getBlock(20)));
+        }
+
+        CachedDisk cached = new CachedDisk(disk);
+        new CromixFileSystem(cached).list(quiet);
+        long misses = cached.getMisses();
+        new CromixFileSystem(cached).list(quiet);
+        assertThat(cached.getMisses(), is(misses));
+        assertThat(cached.getHits() > 0, is(true));
+    }
+
+    @Test
+    public void writeBackChangedOnly() throws IOException {
+        PrintStream quiet = new PrintStream(new NullOutputStream());
+        List<Integer> written = new ArrayList<>();
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(getClass().getClassLoader().getResourceAsStream(IMD_TEST_FILE), quiet), quiet) {
+            @Override
+            public void writeBlock(int blockNumber, byte[] data) {
+                written.add(blockNumber);
+            }
+        };
+
+        CachedDisk cached = CachedDisk.lru(disk, 4);
+        byte[] data = cached.getBlock(20).clone();
+        data[0]++;
+        cached.writeBlock(20, data);
+        cached.writeBlock(21, data);
+
+        // Only read, then evicted or flushed without being written back
+        for (int block = 30; block < 40; block++) {
+            cached.getBlock(block);
+        }
+        assertThat(written, is(Arrays.asList(20, 21)));
+        cached.writeBlock(22, data);
+        cached.getBlock(23);
+        cached.flush();
+        assertThat(written, is(Arrays.asList(20, 21, 22)));
+    }
+}
@@ -1,6 +1,7 @@
 package au.wildie.m68k.cromixfs.disk.floppy;
 
 import au.wildie.m68k.cromixfs.fs.FileSystemOps;
+import au.wildie.m68k.cromixfs.fs.cromix.CromixFileSystem;
 import au.wildie.m68k.cromixfs.fs.FileSystems;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
@@ -8,7 +9,11 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
@@ -41,4 +46,41 @@ public class CromixHFEFloppyDiskTest {
         fs.extract(EXTRACT_PATH, System.out);
         System.out.println("done");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void appendInPlace() throws IOException {
+        File image = Files.createTempFile("cromix-", ".hfe").toFile();
+        FileUtils.copyInputStreamToFile(this.getClass().getClassLoader().getResourceAsStream(HFE_TEST_FILE), image);
+        byte[] original = FileUtils.readFileToByteArray(image);
+
+        File source = Files.createTempDirectory("append-").toFile();
+        File text = new File(source, "hfetest");
+        FileUtils.writeStringToFile(text, "Appended to an HFE image\n", StandardCharsets.US_ASCII);
+
+        CromixFileSystem fs = (CromixFileSystem)FileSystems.getHFEFloppyFileSystem(image.getPath(), System.out);
+        fs.append(source, System.out);
+        ((HFEFloppyImage)fs.getDisk()).persist(image);
+
+        // Only the blocks holding the modified sectors have changed
+        byte[] updated = FileUtils.readFileToByteArray(image);
+        assertThat(updated.length, is(original.length));
+        int changedBlocks = 0;
+        for (int i = 0; i < original.length; i += 0x200) {
+            if (!Arrays.equals(Arrays.copyOfRange(original, i, i + 0x200), Arrays.copyOfRange(updated, i, i + 0x200))) {
+                changedBlocks++;
+            }
+        }
+        assertThat(changedBlocks > 0, is(true));
+        assertThat(changedBlocks < 100, is(true));
+
+        File extractDir = Files.createTempDirectory("extract-").toFile();
+        CromixFileSystem reopened = (CromixFileSystem)FileSystems.getHFEFloppyFileSystem(image.getPath(), System.out);
+        reopened.check(System.out);
+        reopened.extract(extractDir.getPath(), System.out);
+        assertThat(FileUtils.contentEquals(text, new File(extractDir, text.getName())), is(true));
+
+        FileUtils.deleteDirectory(extractDir);
+        FileUtils.deleteDirectory(source);
+        image.delete();
+    }
+}
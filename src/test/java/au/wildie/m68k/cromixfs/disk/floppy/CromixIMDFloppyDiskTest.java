@@ -2,18 +2,29 @@ package au.wildie.m68k.cromixfs.disk.floppy;
 
 import au.wildie.m68k.cromixfs.disk.DiskInterface;
 import au.wildie.m68k.cromixfs.disk.SectorInvalidException;
+import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
+import au.wildie.m68k.cromixfs.disk.imd.IMDSector;
+import au.wildie.m68k.cromixfs.disk.imd.IMDTrack;
+import au.wildie.m68k.cromixfs.disk.imd.ImageException;
 import au.wildie.m68k.cromixfs.fs.FileSystem;
 import au.wildie.m68k.cromixfs.fs.FileSystemOps;
 import au.wildie.m68k.cromixfs.fs.FileSystems;
 import au.wildie.m68k.cromixfs.ftar.CromixFtar;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
 
 import java.io.*;
 import java.nio.file.Paths;
 
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
 public class CromixIMDFloppyDiskTest {
     private static final String CLDSDD_IMAGE = "imd/848CR162.IMD";
     private static final String CSSSDD_IMAGE = "imd/348C1105.IMD";
@@ -86,6 +97,51 @@ public class CromixIMDFloppyDiskTest {
         extract(src, new File(EXTRACT_PATH));
     }
 
+    @Test
+    public void indexLookups() throws IOException {
+        byte[] raw = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(CLDSDD_IMAGE));
+        IMDImage image = IMDImage.fromStream(new ByteArrayInputStream(raw), new PrintStream(new NullOutputStream()));
+
+        for (int i = 0; i < image.getTrackCount(); i++) {
+            IMDTrack track = image.getTrack(i);
+            assertThat(image.getTrack(track.getCylinder(), track.getHead()), sameInstance(track));
+            for (IMDSector sector : track.getSectors()) {
+                assertThat(image.getSector(track.getCylinder(), track.getHead(), sector.getNumber()), sameInstance(sector));
+            }
+        }
+
+        // Re-initialising a track replaces its sectors in the index
+        IMDTrack track = image.getTrack(3, 1);
+        IMDSector old = image.getSector(3, 1, 1);
+        int trackCount = image.getTrackCount();
+        image.initTrack(3, 1, Pair.of(8, 1024));
+        assertThat(image.getTrackCount(), is(trackCount));
+        assertThat(image.getTrack(3, 1), sameInstance(track));
+        for (int number = 1; number <= 8; number++) {
+            IMDSector sector = image.getSector(3, 1, number);
+            assertThat(sector, sameInstance(track.getSector(number)));
+            assertThat(sector.getSize(), is(1024));
+        }
+        assertThat(image.getSector(3, 1, 1), not(sameInstance(old)));
+        try {
+            image.getSector(3, 1, 9);
+            fail("Sector 9 should no longer be found");
+        } catch (ImageException ignored) {
+            // expected
+        }
+    }
+
+    @Test
+    public void persistUnread() throws IOException {
+        byte[] raw = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(CLDSDD_IMAGE));
+        IMDImage image = IMDImage.fromStream(new ByteArrayInputStream(raw), new PrintStream(new NullOutputStream()));
+        assertThat(image.getSector(0, 0, 1).isLoaded(), is(false));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.persist(out);
+        assertThat(out.toByteArray(), is(raw));
+    }
+
     public void extract(InputStream src, File extractDir) throws IOException {
         if (extractDir.exists()) {
             FileUtils.deleteDirectory(extractDir);
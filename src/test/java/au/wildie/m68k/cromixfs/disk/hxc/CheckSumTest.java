@@ -0,0 +1,53 @@
+package au.wildie.m68k.cromixfs.disk.hxc;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CheckSumTest {
+
+    @Test
+    public void knownValue() {
+        // CRC-16/CCITT-FALSE check value
+        assertThat(CheckSum.calculateCRC("123456789".getBytes(), 0, 9, 0xffff), is(0x29b1));
+    }
+
+    @Test
+    public void sameAsBitwise() {
+        Random random = new Random(1);
+        for (int length = 0; length < 1030; length += 7) {
+            byte[] data = new byte[length + 3];
+            random.nextBytes(data);
+            int initialCRC = random.nextInt(0x10000);
+
+            int expected = bitwise(data, 3, length, initialCRC);
+            assertThat(CheckSum.calculateCRC(data, 3, length, initialCRC), is(expected));
+
+            CheckSum checkSum = new CheckSum(initialCRC);
+            for (int i = 0; i < length; i++) {
+                checkSum.update(data[3 + i]);
+            }
+            assertThat(checkSum.getValue(), is(expected));
+        }
+    }
+
+    private static int bitwise(byte[] data, int offset, int length, int initialCRC) {
+        int crc = initialCRC;
+
+        for (int i = 0; i < length; i++) {
+            crc = (crc ^ (data[i + offset] << 8));
+            for (int j = 0; j <= 7; j++) {
+                if ((crc & 0x8000) == 0x8000) {
+                    crc = ((crc << 1) ^ 0x1021);
+                } else {
+                    crc = (crc << 1);
+                }
+            }
+        }
+
+        return (crc & 0xffff);
+    }
+}
@@ -1,10 +1,18 @@
 package au.wildie.m68k.cromixfs.disk.hxc;
 
+import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
+import au.wildie.m68k.cromixfs.disk.imd.IMDTrack;
+import au.wildie.m68k.cromixfs.disk.vfd.InvalidVFDImageException;
+import au.wildie.m68k.cromixfs.disk.vfd.VFDImage;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
@@ -20,4 +28,85 @@ public class HFEImageTest {
         byte[] data = image.read(0, 0, 1);
         data = image.read(0, 1, 1);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void trackCache() throws IOException {
+        InputStream src = this.getClass().getClassLoader().getResourceAsStream("hfe/848CR162.hfe");
+        HFEImage image = HFEImage.from(src, 2);
+
+        image.read(1, 0, 1);
+        image.read(1, 1, 1);
+        image.read(1, 0, 2);
+        assertThat(image.getCacheMisses(), is(2));
+        assertThat(image.getCacheHits(), is(1));
+
+        byte[] data = new byte[image.read(1, 1, 3).length];
+        Arrays.fill(data, (byte)0x5a);
+        image.write(1, 1, 3, data);
+
+        // Evict the modified track, it is decoded again from the written back content
+        image.read(2, 0, 1);
+        image.read(2, 1, 1);
+        assertThat(image.read(1, 1, 3), is(data));
+        assertThat(image.getCacheMisses(), is(5));
+    }
+
+    @Test
+    public void sameAsVFD() throws IOException, InvalidVFDImageException {
+        HFEImage hfe = HFEImage.from(this.getClass().getClassLoader().getResourceAsStream("hfe/848CR162.hfe"));
+        VFDImage vfd = VFDImage.fromStream(this.getClass().getClassLoader().getResourceAsStream("vfd/848CR162.vfd"));
+
+        for (int c = 0; c < vfd.getInfo().getCylinders(); c++) {
+            for (int h = 0; h < vfd.getInfo().getHeads(); h++) {
+                HFETrack track = hfe.getTrack(c, h);
+                int sectors = c == 0 && h == 0 ? vfd.getInfo().getFirst().getSectors() : vfd.getInfo().getRest().getSectors();
+                assertThat(track.getSectorCount(), is(sectors));
+                for (HFESector sector : track.getSectors()) {
+                    assertThat(String.format("cylinder %d, head %d, sector %d", c, h, sector.getNumber()),
+                            sector.getData(), is(vfd.read(c, h, sector.getNumber())));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameAsIMD() throws IOException {
+        HFEImage hfe = HFEImage.from(this.getClass().getClassLoader().getResourceAsStream("hfe/093CR151_IMD.hfe"));
+        IMDImage imd = IMDImage.fromStream(this.getClass().getClassLoader().getResourceAsStream("imd/093CR151.IMD"), System.out);
+
+        // The first track is single density, FM with 128 byte sectors, the rest are MFM
+        assertThat(hfe.getTrack(0, 0).isFMEncoding(), is(true));
+        assertThat(hfe.getTrack(0, 0).getSectorSize(), is(128));
+        assertThat(hfe.getTrack(1, 0).isMFMEncoding(), is(true));
+
+        for (int i = 0; i < imd.getTrackCount(); i++) {
+            IMDTrack imdTrack = imd.getTrack(i);
+            HFETrack track = hfe.getTrack(imdTrack.getCylinder(), imdTrack.getHead());
+            assertThat(track.getSectorCount(), is(imdTrack.getSectorCount()));
+            for (HFESector sector : track.getSectors()) {
+                assertThat(String.format("cylinder %d, head %d, sector %d", imdTrack.getCylinder(), imdTrack.getHead(), sector.getNumber()),
+                        sector.getData(), is(imdTrack.getSector(sector.getNumber()).getData()));
+            }
+        }
+    }
+
+    @Test
+    public void decodeAllTracks() throws IOException {
+        byte[] content = IOUtils.toByteArray(this.getClass().getClassLoader().getResourceAsStream("hfe/093CR151_IMD.hfe"));
+        HFEImage onDemand = HFEImage.from(content.clone());
+        HFEImage decoded = HFEImage.from(content.clone()).decodeAllTracks();
+
+        for (int c = 0; c < decoded.getCylinders(); c++) {
+            for (int h = 0; h < decoded.getHeader().getHeads(); h++) {
+                List<HFESector> expected = onDemand.getTrack(c, h).getSectors();
+                List<HFESector> actual = decoded.getTrack(c, h).getSectors();
+                assertThat(actual.size(), is(expected.size()));
+                for (int i = 0; i < expected.size(); i++) {
+                    assertThat(actual.get(i).getNumber(), is(expected.get(i).getNumber()));
+                    assertThat(actual.get(i).getData(), is(expected.get(i).getData()));
+                }
+            }
+        }
+        assertThat(decoded.getCacheMisses(), is(0));
+    }
+}
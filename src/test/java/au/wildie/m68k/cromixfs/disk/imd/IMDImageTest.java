@@ -0,0 +1,67 @@
+package au.wildie.m68k.cromixfs.disk.imd;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class IMDImageTest {
+    // The data sectors of the blank image are compressed
+    private static final String BLANK_CLDSDDST = "imd/CLDSDDST.IMD";
+
+    @Test
+    public void persistChangedCompressedSector() throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(BLANK_CLDSDDST);
+        assertThat(src, notNullValue());
+        IMDImage image = new IMDImage(IOUtils.toByteArray(src), System.out);
+
+        IMDTrack track = image.getTrack(image.getTrackCount() - 1);
+        IMDSector changed = track.getSectors().get(0);
+        IMDSector unchanged = track.getSectors().get(1);
+        assertThat(IMDImage.isCompressed(changed.getEncoding()), is(true));
+        assertThat(IMDImage.isCompressed(unchanged.getEncoding()), is(true));
+        byte[] data = changed.getData();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        unchanged.getData();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.persist(out);
+        IMDImage persisted = new IMDImage(out.toByteArray(), System.out);
+
+        // The changed sector is written uncompressed, the other keeps its encoding
+        IMDSector reread = persisted.getSector(track.getCylinder(), track.getHead(), changed.getNumber());
+        assertThat(reread.getEncoding(), is(changed.getEncoding() - 1));
+        assertThat(reread.getData(), is(data));
+        reread = persisted.getSector(track.getCylinder(), track.getHead(), unchanged.getNumber());
+        assertThat(reread.getEncoding(), is(unchanged.getEncoding()));
+        assertThat(reread.getData(), is(unchanged.getData()));
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        byte[] raw = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(BLANK_CLDSDDST));
+        int header = 0;
+        while (raw[header] != 0x1a) {
+            header++;
+        }
+
+        // Within the header, the first track header, its sector map, a sector encoding and sector data
+        for (int length : new int[] {header, header + 3, header + 8, header + 1 + 5 + 26, header + 1 + 5 + 26 + 1 + 10}) {
+            try {
+                new IMDImage(Arrays.copyOf(raw, length), System.out);
+                fail(String.format("Image truncated to %d bytes should not be read", length));
+            } catch (ImageException e) {
+                assertThat(e.getMessage().startsWith("Unexpected end of IMD file"), is(true));
+            }
+        }
+    }
+}
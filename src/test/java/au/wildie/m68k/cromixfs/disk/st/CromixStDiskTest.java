@@ -4,10 +4,19 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+
+import static au.wildie.m68k.cromixfs.utils.BinUtils.readDWord;
+import static au.wildie.m68k.cromixfs.utils.BinUtils.writeDWord;
+import static au.wildie.m68k.cromixfs.utils.BinUtils.writeWord;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
 
 public class CromixStDiskTest {
 //    private static final String IMG_FILE = "/home/dwildie/m68000/cromix/disk0_848.img";
@@ -69,4 +78,87 @@ public class CromixStDiskTest {
 
         System.out.println("done");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void mappedBlocks() throws IOException, STDiskException {
+        File image = createImage(10, 2, 4);
+        try {
+            try (CromixStDisk stDisk = new CromixStDisk(image.getPath(), 0)) {
+                // Partition 0 starts at cylinder 1
+                assertThat(readDWord(stDisk.getBlock(0), 0), is(8));
+                assertThat(readDWord(stDisk.getBlock(13), 0), is(21));
+
+                writeDWord(0x12345678, stDisk.getBlock(13), 4);
+                stDisk.flush();
+            }
+
+            try (CromixStDisk stDisk = new CromixStDisk(image.getPath(), 0)) {
+                assertThat(readDWord(stDisk.getBlock(13), 0), is(21));
+                assertThat(readDWord(stDisk.getBlock(13), 4), is(0x12345678));
+
+                writeDWord(0x0badcafe, stDisk.getBlock(2), 4);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                stDisk.persist(out);
+                byte[] persisted = out.toByteArray();
+                assertThat(persisted.length, is((int)image.length()));
+                assertThat(readDWord(persisted, 10 * 512), is(10));
+                assertThat(readDWord(persisted, 10 * 512 + 4), is(0x0badcafe));
+                assertThat(readDWord(persisted, 21 * 512 + 4), is(0x12345678));
+            }
+        } finally {
+            image.delete();
+        }
+    }
+
+    @Test
+    public void retainedBlock() throws IOException, STDiskException {
+        File image = createImage(40, 2, 17);
+        try {
+            try (CromixStDisk stDisk = new CromixStDisk(image.getPath(), 0)) {
+                // Held while more blocks are read than are cached, then changed
+                byte[] retained = stDisk.getBlock(5);
+                for (int block = 6; block < 1200; block++) {
+                    stDisk.getBlock(block);
+                }
+                writeDWord(0x12345678, retained, 4);
+                assertThat(stDisk.getBlock(5), sameInstance(retained));
+
+                // And a copy passed back after the block was read again
+                byte[] copy = stDisk.getBlock(6).clone();
+                for (int block = 7; block < 1200; block++) {
+                    stDisk.getBlock(block);
+                }
+                writeDWord(0x0badcafe, copy, 4);
+                stDisk.writeBlock(6, copy);
+                stDisk.flush();
+            }
+
+            try (CromixStDisk stDisk = new CromixStDisk(image.getPath(), 0)) {
+                assertThat(readDWord(stDisk.getBlock(5), 0), is(39));
+                assertThat(readDWord(stDisk.getBlock(5), 4), is(0x12345678));
+                assertThat(readDWord(stDisk.getBlock(6), 4), is(0x0badcafe));
+            }
+        } finally {
+            image.delete();
+        }
+    }
+
+    private File createImage(int cylinders, int heads, int sectors) throws IOException {
+        byte[] raw = new byte[cylinders * heads * sectors * 512];
+        for (int i = 0; i < raw.length / 512; i++) {
+            writeDWord(i, raw, i * 512);
+        }
+
+        // Drive geometry in sector 0, empty partition table in sector 1
+        writeWord(cylinders, raw, 0x68);
+        raw[0x6C] = (byte)heads;
+        raw[0x6D] = (byte)sectors;
+        writeWord(512, raw, 0x6E);
+        writeWord(512, raw, 0x76);
+        writeWord(0xe5e5, raw, 512);
+
+        File image = Files.createTempFile("st-", ".img").toFile();
+        FileUtils.writeByteArrayToFile(image, raw);
+        return image;
+    }
+}
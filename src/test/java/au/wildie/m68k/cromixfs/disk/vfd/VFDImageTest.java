@@ -4,8 +4,10 @@ import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -93,4 +95,19 @@ public class VFDImageTest {
         assertThat(raw, notNullValue());
         assertThat(raw.length, is(expectedLength));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readSectors() throws IOException, InvalidVFDImageException {
+        InputStream imdFile = this.getClass().getClassLoader().getResourceAsStream("imd/848CR162.IMD");
+        assertThat(imdFile, notNullValue());
+
+        VFDImage vfdImage = VFDImage.fromStream(new ByteArrayInputStream(VFDImage.from(new IMDImage(IOUtils.toByteArray(imdFile), System.out)).toBytes()));
+
+        byte[] sectors = vfdImage.read(3, 1, 5, 4);
+        assertThat(sectors.length, is(4 * 512));
+        for (int i = 0; i < 4; i++) {
+            assertThat(Arrays.copyOfRange(sectors, i * 512, (i + 1) * 512), is(vfdImage.read(3, 1, 5 + i)));
+        }
+        assertThat(vfdImage.slice(3, 1, 5, 4).remaining(), is(4 * 512));
+    }
+}
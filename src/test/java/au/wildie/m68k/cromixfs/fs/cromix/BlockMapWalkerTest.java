@@ -0,0 +1,75 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BlockMapWalkerTest {
+
+    @Test
+    public void walk() {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        SuperBlock superBlock = SuperBlock.initialiseLarge(disk.getFormatLabel());
+        FreeBlockList freeBlockList = FreeBlockList.create(superBlock, disk);
+        WriteBackCache writeBack = new WriteBackCache(superBlock, disk, dirty -> {});
+
+        Inode inode = new Inode(1);
+        List<Integer> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int blockNumber = freeBlockList.getAvailableBlock();
+            inode.addBlock(blockNumber, writeBack, freeBlockList);
+            added.add(blockNumber);
+        }
+        writeBack.commit();
+
+        List<Integer> dataBlocks = new ArrayList<>();
+        int[] pointerBlocks = new int[4];
+        new BlockMapWalker(disk).walk(inode, new BlockMapVisitor() {
+            @Override
+            public void visitDataBlock(int blockNumber) {
+                dataBlocks.add(blockNumber);
+            }
+
+            @Override
+            public void visitPointerBlock(int blockNumber, int level) {
+                pointerBlocks[level]++;
+            }
+        });
+
+        // Data blocks are visited in file order
+        assertThat(dataBlocks, is(added));
+        assertThat(pointerBlocks[1], is(1 + (1000 - 16 - 128 + 127) / 128));
+        assertThat(pointerBlocks[2], is(1));
+        assertThat(pointerBlocks[3], is(0));
+        assertThat(pointerBlocks[1] + pointerBlocks[2], is(Inode.getPointerBlockCount(1000)));
+        assertThat(inode.countUsedBlocks(disk), is(1000 + Inode.getPointerBlockCount(1000)));
+        assertThat(inode.getDataBlocks(new BlockMapWalker(writeBack)), is(added));
+
+        // Pointer blocks read from the disk are passed to the visitor
+        List<byte[]> blocks = new ArrayList<>();
+        new BlockMapWalker(disk).walk(inode, new BlockMapVisitor() {
+            @Override
+            public void visitDataBlock(int blockNumber) {
+            }
+
+            @Override
+            public void visitPointerBlock(int blockNumber, int level, byte[] block) {
+                try {
+                    assertThat(block, is(disk.getBlock(blockNumber)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                blocks.add(block);
+            }
+        });
+        assertThat(blocks.size(), is(Inode.getPointerBlockCount(1000)));
+    }
+}
@@ -0,0 +1,102 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BlockUsageTest {
+
+    @Test
+    public void counts() {
+        SuperBlock superBlock = SuperBlock.initialiseLarge(CromixIMDFloppyDisk.createLarge(System.out).getFormatLabel());
+        int first = superBlock.getFirstDataBlock();
+        int count = superBlock.getDataBlockCount();
+        BlockUsage usage = new BlockUsage(superBlock);
+        assertThat(usage.getOrphanedBlockCount(), is(count));
+
+        Random random = new Random(3);
+        int[] uses = new int[count];
+        for (int i = 0; i < count * 2; i++) {
+            int index = random.nextInt(count);
+            int use = random.nextInt(3);
+            if (use == 0) {
+                usage.setFile(first + index);
+            } else if (use == 1) {
+                usage.setDirectory(first + index);
+            } else {
+                usage.setOnFreeList(first + index);
+            }
+            uses[index] |= 1 << use;
+        }
+        // The last block
+        usage.setFile(first + count - 1);
+        uses[count - 1] |= 1;
+
+        int file = 0, directory = 0, onFreeList = 0;
+        List<Integer> orphaned = new ArrayList<>();
+        List<Integer> duplicate = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            file += uses[i] & 1;
+            directory += (uses[i] >> 1) & 1;
+            onFreeList += (uses[i] >> 2) & 1;
+            if (uses[i] == 0) {
+                orphaned.add(first + i);
+            }
+            if (Integer.bitCount(uses[i]) > 1) {
+                duplicate.add(first + i);
+            }
+        }
+
+        assertThat(usage.getFileBlockCount(), is(file));
+        assertThat(usage.getDirectoryBlockCount(), is(directory));
+        assertThat(usage.getOnFreeListBlockCount(), is(onFreeList));
+        assertThat(usage.getOrphanedBlockCount(), is(orphaned.size()));
+        assertThat(usage.getDuplicateBlockCount(), is(duplicate.size()));
+        assertThat(toList(usage.orphanedBlocks()), is(orphaned));
+        assertThat(toList(usage.duplicateBlocks()), is(duplicate));
+        assertThat(usage.isFile(first + count - 1), is(true));
+
+        try {
+            usage.setFile(first + count);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    private List<Integer> toList(PrimitiveIterator.OfInt blocks) {
+        List<Integer> list = new ArrayList<>();
+        blocks.forEachRemaining((Integer block) -> list.add(block));
+        return list;
+    }
+
+    @Test
+    public void concurrentSets() {
+        SuperBlock superBlock = SuperBlock.initialiseLarge(CromixIMDFloppyDisk.createLarge(System.out).getFormatLabel());
+        int first = superBlock.getFirstDataBlock();
+        int count = superBlock.getDataBlockCount();
+        BlockUsage usage = new BlockUsage(superBlock);
+
+        // Neighbouring blocks share words, every set must survive
+        IntStream.range(0, count).parallel().forEach(index -> {
+            if (index % 3 == 0) {
+                usage.setDirectory(first + index);
+            } else {
+                usage.setFile(first + index);
+            }
+        });
+
+        assertThat(usage.getDirectoryBlockCount(), is((count + 2) / 3));
+        assertThat(usage.getFileBlockCount(), is(count - (count + 2) / 3));
+        assertThat(usage.getOrphanedBlockCount(), is(0));
+        assertThat(usage.getDuplicateBlockCount(), is(0));
+    }
+}
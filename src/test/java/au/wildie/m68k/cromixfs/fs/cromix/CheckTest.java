@@ -0,0 +1,172 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntry.DIRECTORY_ENTRY_LENGTH;
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryEntry.NAME_LENGTH;
+import static au.wildie.m68k.cromixfs.fs.cromix.Inode.*;
+import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_INODE_LIST_SIZE;
+import static au.wildie.m68k.cromixfs.utils.BinUtils.writeWord;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CheckTest {
+    private static final String[] IMAGES = {"imd/094CR162.IMD", "imd/458C3140.IMD", "imd/848CR162.IMD"};
+
+    @Test
+    public void parallel() throws IOException {
+        for (String image : IMAGES) {
+            String sequential = check(image, 1);
+            assertThat(sequential, containsString("Inode "));
+            assertThat(check(image, 4), is(sequential));
+            assertThat(check(image, 7), is(sequential));
+        }
+    }
+
+    @Test
+    public void walk() throws IOException {
+        for (String image : IMAGES) {
+            String sequential = walk(image, 1);
+            assertThat(walk(image, 4), is(sequential));
+            assertThat(walk(image, 7), is(sequential));
+        }
+    }
+
+    @Test
+    public void cache() throws IOException {
+        for (String image : IMAGES) {
+            DiskInterface disk = load(image);
+            SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+            InodeManager inodeManager = InodeManager.read(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk));
+
+            Check first = new Check(superBlock, inodeManager, disk);
+            first.useCache(null);
+            String expected = run(first);
+            assertThat(first.getReusedCount(), is(0));
+            assertThat(first.getCache().getCompleteCount(), is(first.getCache().getRegionCount()));
+
+            File results = File.createTempFile("check", ".results");
+            try {
+                first.getCache().write(results);
+
+                // Nothing has changed, every inode block is reused
+                Check second = new Check(superBlock, inodeManager, disk);
+                second.useCache(CheckCache.read(results));
+                assertThat(run(second), is(expected));
+                assertThat(second.getReusedCount(), is(second.getCache().getRegionCount()));
+
+                // Change the name in an entry of the root directory, only the first inode block is checked again
+                byte[] block = disk.getBlock(inodeManager.getInode(1).getBlockNumber(0));
+                block[DIRECTORY_ENTRY_LENGTH + NAME_LENGTH - 1] ^= 1;
+                Check third = new Check(superBlock, inodeManager, disk);
+                third.useCache(second.getCache());
+                assertThat(run(third), is(expected));
+                assertThat(third.getReusedCount(), is(third.getCache().getRegionCount() - 1));
+            } finally {
+                results.delete();
+            }
+        }
+    }
+
+    @Test
+    public void damagedFreeInodeList() throws IOException {
+        DiskInterface disk = load(IMAGES[0]);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+
+        // The first entry names an inode holding another number, the second is past the end of the table
+        int inodeNumber = superBlock.getFreeInodeList()[0];
+        assertThat(inodeNumber, not(0));
+        int blockNumber = superBlock.getFirstInodeBlock() + (inodeNumber - 1) / INODES_PER_BLOCK;
+        byte[] block = disk.getBlock(blockNumber);
+        writeWord(inodeNumber + 1, block, ((inodeNumber - 1) % INODES_PER_BLOCK) * INODE_LENGTH + INODE_NUMBER_OFFSET);
+        disk.writeBlock(blockNumber, block);
+        InodeManager inodeManager = InodeManager.read(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk));
+        int outOfRange = inodeManager.getAllInodes().size() + 1;
+        superBlock.getFreeInodeList()[1] = outOfRange;
+        Arrays.fill(superBlock.getFreeInodeList(), 2, FREE_INODE_LIST_SIZE, 0);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        Check.Walk walk = new Check(superBlock, inodeManager, disk).walk(new PrintStream(text), false);
+        assertThat(text.toString(), containsString(String.format("inode %d is out of range", outOfRange)));
+        InodeStats inodeStats = walk.getInodeStats();
+        assertThat(inodeStats.getFreeInodeListAvailable(), is(1));
+        assertThat(inodeStats.getFreeInodeListUsed(), is(0));
+    }
+
+    private String run(Check check) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(text);
+        check.passOne();
+        out.printf("dcheck errors %d\n", check.passTwo(out));
+        Check.Walk walk = check.walk(out, true);
+        out.printf("inode block errors %d\n", walk.getFileErrors());
+        out.printf("%d %d %d %d\n", walk.getFiles(), walk.getDirectories(),
+                walk.getBlockUsage().getFileBlockCount(), walk.getBlockUsage().getDirectoryBlockCount());
+        out.flush();
+        return text.toString();
+    }
+
+    private String walk(String image, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            Check.Walk walk = read(image, pool).walk(new PrintStream(text), false);
+
+            // Files are only checked when asked
+            assertThat(text.size(), is(0));
+            assertThat(walk.getFileErrors(), nullValue());
+
+            InodeStats inodeStats = walk.getInodeStats();
+            BlockUsage blockUsage = walk.getBlockUsage();
+            assertThat(walk.getFiles(), is(inodeStats.getFileInodes() + inodeStats.getSharedTextInodes()));
+            assertThat(walk.getDirectories(), is(inodeStats.getDirectoryInodes()));
+            assertThat(walk.getDevices(), is(inodeStats.getDeviceInodes()));
+            assertThat(blockUsage.getFileBlockCount() > 0, is(true));
+            return String.format("%d %d %d %d %d %d %d %d", walk.getFiles(), walk.getDirectories(), walk.getDevices(),
+                    inodeStats.getFreeInodes(), inodeStats.getFreeInodeListUsed(), inodeStats.getFreeInodeListAvailable(),
+                    blockUsage.getFileBlockCount(), blockUsage.getDirectoryBlockCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private String check(String image, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(text);
+            Check check = read(image, pool);
+            check.passOne();
+            out.printf("dcheck errors %d\n", check.passTwo(out));
+            out.printf("inode block errors %d\n", check.fileCheck(out));
+            out.flush();
+            return text.toString();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Check read(String image, ForkJoinPool pool) throws IOException {
+        DiskInterface disk = load(image);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+        InodeManager inodeManager = InodeManager.read(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk));
+        return new Check(superBlock, inodeManager, disk, pool);
+    }
+
+    private DiskInterface load(String image) throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(image);
+        assertThat(src, notNullValue());
+        return new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out);
+    }
+}
@@ -6,16 +6,24 @@ import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
 import au.wildie.m68k.cromixfs.fs.FileSystemOps;
 import au.wildie.m68k.cromixfs.fs.FileSystems;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Random;
 
+import static au.wildie.m68k.cromixfs.fs.cromix.CromixFileOutputStream.BUFFERED_BLOCKS;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 
 public class CromixFileSystemTest {
     private static final String CLDSDD_FS_IMAGE = "imd/094CR162.IMD";
@@ -250,6 +258,279 @@ public class CromixFileSystemTest {
         FileUtils.deleteDirectory(t3);
     }
 
+    @Test
+    public void appendWriteBack() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+
+        File t1 = Files.createTempDirectory(Paths.get("/tmp"), "test1-").toFile();
+        String[] files = new String[30];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = createTextFile(t1.getAbsolutePath(), String.format("file-%d", i));
+        }
+
+        fs.append(t1, System.out);
+
+        // Each file touches its inode and at most one pointer block, the directory and super blocks are shared
+        WriteBackCache writeBack = fs.getInodeManager().getWriteBack();
+        assertThat(writeBack.getEncodeCount() <= files.length * 2 + 4, is(true));
+        assertThat(writeBack.isDirty(), is(false));
+
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        assertThat(reopened.check(System.out).hasErrors(), is(false));
+
+        File t2 = Files.createTempDirectory(Paths.get("/tmp"), "test2-").toFile();
+        reopened.extract(t2.getPath(), System.out);
+        for (String file : files) {
+            assertThat(compare(file, t2.getPath()), is(true));
+        }
+
+        FileUtils.deleteDirectory(t1);
+        FileUtils.deleteDirectory(t2);
+    }
+
+    @Test
+    public void openChannel() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+
+        File t1 = Files.createTempDirectory(Paths.get("/tmp"), "test1-").toFile();
+        File sub = new File(t1, "sub");
+        assertThat(sub.mkdir(), is(true));
+        byte[] content = new byte[100000];
+        new Random(1).nextBytes(content);
+        FileUtils.writeByteArrayToFile(new File(sub, "large.bin"), content);
+        fs.append(t1, System.out);
+
+        try (SeekableByteChannel channel = fs.openChannel("/sub/large.bin")) {
+            assertThat(channel.size(), is((long) content.length));
+
+            ByteBuffer all = ByteBuffer.allocate(content.length);
+            while (all.hasRemaining()) {
+                assertThat(channel.read(all) > 0, is(true));
+            }
+            assertThat(all.array(), is(content));
+            assertThat(channel.read(ByteBuffer.allocate(1)), is(-1));
+
+            // Read the tail, past the single indirect blocks
+            ByteBuffer tail = ByteBuffer.allocate(1000);
+            channel.position(content.length - 1000);
+            assertThat(channel.read(tail), is(1000));
+            assertThat(tail.array(), is(Arrays.copyOfRange(content, content.length - 1000, content.length)));
+        }
+
+        try (InputStream in = fs.openInputStream("sub/large.bin")) {
+            byte[] header = new byte[700];
+            assertThat(IOUtils.read(in, header), is(header.length));
+            assertThat(header, is(Arrays.copyOf(content, header.length)));
+        }
+
+        try {
+            fs.openChannel("/sub/missing.bin");
+            fail();
+        } catch (FileNotFoundException expected) {
+        }
+
+        FileUtils.deleteDirectory(t1);
+    }
+
+    @Test
+    public void createOutputStream() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+        int freeBlocks = fs.getInodeManager().getFreeBlockList().getFreeBlockCount();
+
+        byte[] content = new byte[100000];
+        new Random(2).nextBytes(content);
+        try (OutputStream out = fs.createOutputStream("/data.bin")) {
+            out.write(content[0]);
+            for (int offset = 1; offset < content.length; offset += 777) {
+                out.write(content, offset, Math.min(777, content.length - offset));
+            }
+        }
+
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        assertThat(reopened.check(System.out).hasErrors(), is(false));
+        try (InputStream in = reopened.openInputStream("/data.bin")) {
+            assertThat(IOUtils.toByteArray(in), is(content));
+        }
+
+        // Replace it with a smaller file, the blocks of the first are returned
+        byte[] replacement = Arrays.copyOf(content, 1000);
+        try (OutputStream out = reopened.createOutputStream("/data.bin")) {
+            out.write(replacement);
+        }
+        assertThat(reopened.getInodeManager().getFreeBlockList().getFreeBlockCount(), is(freeBlocks - 2));
+        try (InputStream in = reopened.openInputStream("/data.bin")) {
+            assertThat(IOUtils.toByteArray(in), is(replacement));
+        }
+        assertThat(new CromixFileSystem(disk).check(System.out).hasErrors(), is(false));
+    }
+
+    @Test
+    public void createOutputStreamMixedCase() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+        byte[] content = new byte[1500];
+        new Random(4).nextBytes(content);
+
+        write(fs, "/Data.bin", content);
+        assertThat(read(fs, "/Data.bin"), is(content));
+        assertThat(read(fs, "/data.bin"), is(content));
+        assertThat(read(new CromixFileSystem(disk), "/Data.bin"), is(content));
+    }
+
+    @Test
+    public void createOutputStreamUncommittedDirectory() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+        byte[] content = new byte[700];
+        new Random(6).nextBytes(content);
+
+        // The directory is only in the write back cache until the file is committed
+        File root = new File("root");
+        fs.findOrCreateDirectoryEntry(root, fs.getInodeManager().getInode(1), new File(root, "sub"), System.out);
+        write(fs, "/sub/data.bin", content);
+
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        assertThat(reopened.check(System.out).hasErrors(), is(false));
+        assertThat(read(reopened, "/sub/data.bin"), is(content));
+    }
+
+    @Test
+    public void createOutputStreamFragmented() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+
+        // Leave single block holes through the first 200 free blocks
+        FreeBlockList freeBlockList = fs.getInodeManager().getFreeBlockList();
+        List<Integer> taken = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            taken.add(freeBlockList.getAvailableBlock());
+        }
+        for (int i = 0; i < taken.size(); i += 2) {
+            freeBlockList.returnBlock(taken.get(i));
+        }
+        fs.getInodeManager().commit();
+
+        // Two streams open at once, each buffer is still written as a run
+        byte[] first = new byte[48 * 512];
+        byte[] second = new byte[40 * 512 + 11];
+        Random random = new Random(5);
+        random.nextBytes(first);
+        random.nextBytes(second);
+        try (OutputStream a = fs.createOutputStream("/first"); OutputStream b = fs.createOutputStream("/second")) {
+            for (int offset = 0; offset < Math.max(first.length, second.length); offset += 5000) {
+                if (offset < first.length) {
+                    a.write(first, offset, Math.min(5000, first.length - offset));
+                }
+                if (offset < second.length) {
+                    b.write(second, offset, Math.min(5000, second.length - offset));
+                }
+            }
+        }
+
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        assertThat(reopened.check(System.out).hasErrors(), is(false));
+        assertThat(read(reopened, "/first"), is(first));
+        assertThat(read(reopened, "/second"), is(second));
+        // At most a jump between each buffer of blocks
+        assertThat(countJumps(reopened.findInode("/first").getDataBlocks(disk)) < 48 / BUFFERED_BLOCKS, is(true));
+        assertThat(countJumps(reopened.findInode("/second").getDataBlocks(disk)) < 41 / BUFFERED_BLOCKS + 1, is(true));
+    }
+
+    @Test
+    public void compact() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        CromixFileSystem fs = CromixFileSystem.initialise(disk);
+        Random random = new Random(3);
+        byte[] first = new byte[50 * 512];
+        byte[] second = new byte[200 * 512 + 17];
+        byte[] third = new byte[100 * 512 + 300];
+        random.nextBytes(first);
+        random.nextBytes(second);
+        random.nextBytes(third);
+
+        // Replacing the first file leaves a hole ahead of the second, the third is split around it
+        write(fs, "/first", first);
+        write(fs, "/second", second);
+        first = Arrays.copyOf(first, 1000);
+        write(fs, "/first", first);
+        write(fs, "/third", third);
+        assertThat(countJumps(fs.findInode("/third").getDataBlocks(disk)) > 0, is(true));
+
+        // And a block that is not used or free
+        fs.getInodeManager().getFreeBlockList().getAvailableBlock();
+        fs.getInodeManager().commit();
+        assertThat(fs.check(System.out).getBlockStats().getOrphanedBlocks(), is(1));
+
+        Compactor compactor = fs.compact(System.out);
+        assertThat(compactor.getMovedBlocks() > 0, is(true));
+
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        CromixFileSystemStats stats = reopened.check(System.out);
+        assertThat(stats.hasErrors(), is(false));
+        assertThat(stats.getBlockStats().getOrphanedBlocks(), is(0));
+        assertThat(stats.getBlockStats().getDuplicateBlocks(), is(0));
+        assertThat(stats.getBlockStats().getFileBlocks() + stats.getBlockStats().getDirectoryBlocks(), is(compactor.getUsedBlocks()));
+        assertThat(stats.getBlockStats().getFreeListBlocks(), is(stats.getBlockStats().getAvailableBlocks() - compactor.getUsedBlocks()));
+
+        int firstFree = SuperBlock.from(disk.getSuperBlock()).getFirstDataBlock() + compactor.getUsedBlocks();
+        assertThat(reopened.getInodeManager().getFreeBlockList().isFree(firstFree - 1), is(false));
+        assertThat(reopened.getInodeManager().getFreeBlockList().isFree(firstFree), is(true));
+
+        assertThat(read(reopened, "/first"), is(first));
+        assertThat(read(reopened, "/second"), is(second));
+        assertThat(read(reopened, "/third"), is(third));
+        for (String path : new String[] {"/first", "/second", "/third"}) {
+            assertThat(countJumps(reopened.findInode(path).getDataBlocks(disk)), is(0));
+        }
+    }
+
+    @Test
+    public void compactPersisted() throws IOException {
+        // The data sectors of the blank image are compressed
+        InputStream src = getClass().getClassLoader().getResourceAsStream(BLANK_CLDSDDST);
+        CromixFileSystem fs = new CromixFileSystem(new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out));
+        byte[] content = new byte[30 * 512 + 5];
+        new Random(4).nextBytes(content);
+        write(fs, "/data.bin", content);
+        fs.compact(System.out);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        fs.persist(archive);
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(new ByteArrayInputStream(archive.toByteArray()), System.out), System.out);
+        CromixFileSystem reopened = new CromixFileSystem(disk);
+        CromixFileSystemStats stats = reopened.check(System.out);
+        assertThat(stats.hasErrors(), is(false));
+        assertThat(stats.getBlockStats().getOrphanedBlocks(), is(0));
+        assertThat(read(reopened, "/data.bin"), is(content));
+    }
+
+    private void write(CromixFileSystem fs, String path, byte[] content) throws IOException {
+        try (OutputStream out = fs.createOutputStream(path)) {
+            out.write(content);
+        }
+    }
+
+    private byte[] read(CromixFileSystem fs, String path) throws IOException {
+        try (InputStream in = fs.openInputStream(path)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    // Breaks in the run of data blocks, other than for the pointer blocks between them
+    private int countJumps(List<Integer> blocks) {
+        int jumps = 0;
+        for (int i = 1; i < blocks.size(); i++) {
+            int step = blocks.get(i) - blocks.get(i - 1);
+            if (step < 1 || step > 3) {
+                jumps++;
+            }
+        }
+        return jumps;
+    }
+
     private boolean compare(String file, String dir) throws IOException {
         File a = new File(file);
         File b = Paths.get(dir, a.getName()).toFile();
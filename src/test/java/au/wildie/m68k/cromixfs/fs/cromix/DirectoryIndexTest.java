@@ -0,0 +1,52 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import org.junit.Test;
+
+import static au.wildie.m68k.cromixfs.fs.cromix.DirectoryBlock.DIRECTORY_ENTRIES;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DirectoryIndexTest {
+
+    @Test
+    public void allocate() {
+        DirectoryBlock[] blocks = {new DirectoryBlock(100, true), new DirectoryBlock(101, true)};
+        DirectoryIndex index = new DirectoryIndex(512);
+        index.addBlock(0, blocks[0]);
+        index.addBlock(1, blocks[1]);
+        assertThat(index.getExtent(), is(getExtent(blocks)));
+
+        for (int i = 0; i < 20; i++) {
+            DirectoryEntry entry = index.getFirstUnusedEntry();
+            assertThat(entry.getDirectoryBlock(), sameInstance(blocks[i / DIRECTORY_ENTRIES]));
+            assertThat(entry.getIndex(), is(i % DIRECTORY_ENTRIES));
+            entry.setStatus(DirectoryEntryStatus.ALLOCATED);
+            entry.setName(String.format("file-%d", i));
+            entry.setInodeNumber(i + 2);
+            index.allocated(entry);
+
+            assertThat(index.getExtent(), is(getExtent(blocks)));
+        }
+
+        assertThat(index.find("file-7").getInodeNumber(), is(9));
+        assertThat(index.find("file-20"), nullValue());
+
+        DirectoryEntry entry = index.find("file-3");
+        entry.setStatus(DirectoryEntryStatus.NOT_ALLOCATED);
+        index.released(entry, "file-3");
+        assertThat(index.find("file-3"), nullValue());
+        assertThat(index.getFirstUnusedEntry(), sameInstance(entry));
+        assertThat(index.getExtent(), is(getExtent(blocks)));
+    }
+
+    // The extent as the directory blocks measure it
+    private int getExtent(DirectoryBlock[] blocks) {
+        int extent = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i].getUnusedEntries() > 0) {
+                extent = Math.max(extent, i * 512 + blocks[i].getExtent());
+            }
+        }
+        return extent;
+    }
+}
@@ -1,9 +1,16 @@
 package au.wildie.m68k.cromixfs.fs.cromix;
 
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static au.wildie.m68k.cromixfs.fs.cromix.SuperBlock.FREE_BLOCK_LIST_SIZE;
 import static org.hamcrest.CoreMatchers.containsString;
@@ -52,4 +59,100 @@ public class FreeBlockListTest {
         int finalFreeBlockCount = freeBlockList.getFreeBlockCount();
         assertThat(finalFreeBlockCount, is(initialFreeBlockCount));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void flush() {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        SuperBlock superBlock = SuperBlock.initialiseLarge(disk.getFormatLabel());
+
+        FreeBlockList freeBlockList = FreeBlockList.create(superBlock, disk);
+        List<Integer> taken = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            taken.add(freeBlockList.getAvailableBlock());
+        }
+        for (int i = 0; i < taken.size(); i += 3) {
+            freeBlockList.returnBlock(taken.get(i));
+        }
+        freeBlockList.flush();
+        assertThat(freeBlockList.isDirty(), is(false));
+
+        // The chain written back reads as the same free blocks
+        FreeBlockList reread = FreeBlockList.readFreeBlockList(superBlock, disk);
+        assertThat(reread.getFreeBlockCount(), is(freeBlockList.getFreeBlockCount()));
+        Set<Integer> expected = new HashSet<>();
+        freeBlockList.visit(expected::add);
+        Set<Integer> actual = new HashSet<>();
+        reread.visit(actual::add);
+        assertThat(actual, is(expected));
+
+        // Lowest blocks first
+        assertThat(reread.getAvailableBlock(), is(taken.get(0)));
+        assertThat(reread.getAvailableBlock(), is(taken.get(3)));
+    }
+
+    @Test
+    public void flushKeepsStrayEntries() throws IOException {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        SuperBlock superBlock = SuperBlock.initialiseLarge(disk.getFormatLabel());
+        FreeBlockList freeBlockList = FreeBlockList.create(superBlock, disk);
+        while (freeBlockList.getFreeBlockCount() > 5) {
+            freeBlockList.getAvailableBlock();
+        }
+        freeBlockList.flush();
+
+        // Damage the chain with entries outside the data area, more than the free blocks left can hold in one list
+        int second = superBlock.getFirstDataBlock();
+        FreeBlock strays = new FreeBlock();
+        strays.setBlockNumber(second);
+        strays.setCount(71);
+        Arrays.fill(strays.getList(), 1, 71, 1);
+        strays.flush(superBlock, disk);
+        superBlock.getFreeBlockList()[0] = second;
+        Arrays.fill(superBlock.getFreeBlockList(), 6, FREE_BLOCK_LIST_SIZE, 1);
+        superBlock.setFreeBlockCount(FREE_BLOCK_LIST_SIZE);
+
+        FreeBlockList damaged = FreeBlockList.readFreeBlockList(superBlock, disk);
+        assertThat(damaged.getFreeBlockCount(), is(6 + 74 + 70));
+        damaged.flush();
+        assertThat(damaged.getFreeBlockCount(), is(6 + 74 + 70));
+
+        FreeBlockList reread = FreeBlockList.readFreeBlockList(superBlock, disk);
+        assertThat(reread.getFreeBlockCount(), is(6 + 74 + 70));
+        List<Integer> expected = new ArrayList<>();
+        damaged.visit(expected::add);
+        List<Integer> actual = new ArrayList<>();
+        reread.visit(actual::add);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void reserve() {
+        SuperBlock superBlock = SuperBlock.initialiseLarge("CLDSDD");
+        FreeBlockList freeBlockList = FreeBlockList.create(superBlock, null);
+        int first = superBlock.getFirstDataBlock();
+
+        // Leave single block holes in the first 40 blocks
+        for (int i = 0; i < 100; i++) {
+            freeBlockList.getAvailableBlock();
+        }
+        for (int i = 0; i < 40; i += 2) {
+            freeBlockList.returnBlock(first + i);
+        }
+
+        freeBlockList.reserve(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(freeBlockList.getAvailableBlock(), is(first + 100 + i));
+        }
+
+        // Used up, back to the lowest free block
+        assertThat(freeBlockList.isReserved(), is(false));
+        assertThat(freeBlockList.getAvailableBlock(), is(first));
+
+        freeBlockList.reserve(2);
+        assertThat(freeBlockList.getAvailableBlock(), is(first + 120));
+        freeBlockList.releaseReservation();
+        assertThat(freeBlockList.getAvailableBlock(), is(first + 2));
+    }
+}
@@ -0,0 +1,135 @@
+package au.wildie.m68k.cromixfs.fs.cromix;
+
+import au.wildie.m68k.cromixfs.disk.DiskInterface;
+import au.wildie.m68k.cromixfs.disk.floppy.cromix.CromixIMDFloppyDisk;
+import au.wildie.m68k.cromixfs.disk.imd.IMDImage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class InodeManagerTest {
+    private static final String CLDSDD_FS_IMAGE = "imd/094CR162.IMD";
+
+    @Test
+    public void getInode() throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(CLDSDD_FS_IMAGE);
+        assertThat(src, notNullValue());
+
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+        InodeManager manager = InodeManager.read(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk));
+
+        int found = 0;
+        for (int i = 0; i < manager.getAllInodes().size(); i++) {
+            Inode inode = manager.getAllInodes().get(i);
+            if (inode.getNumber() == i + 1) {
+                assertThat(manager.getInode(inode.getNumber()), sameInstance(inode));
+                found++;
+            }
+        }
+        assertThat(found > 0, is(true));
+
+        for (int number : new int[] {0, -1, manager.getAllInodes().size() + 1}) {
+            try {
+                manager.getInode(number);
+                fail(String.format("Inode %d should not be found", number));
+            } catch (InodeException ignored) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void scanInodes() throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(CLDSDD_FS_IMAGE);
+        assertThat(src, notNullValue());
+
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+        InodeManager manager = InodeManager.read(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk));
+
+        // The views decode the same fields as the inodes
+        int[] visited = new int[1];
+        manager.scanInodes((index, view) -> {
+            Inode inode = manager.getAllInodes().get(index);
+            assertThat(view.getNumber(), is(inode.getNumber()));
+            assertThat(view.getParent(), is(inode.getParent()));
+            assertThat(view.getType(), is(inode.getType()));
+            assertThat(view.getLinks(), is(inode.getLinks()));
+            assertThat(view.getFileSize(), is(inode.getFileSize()));
+            assertThat(view.getUsedBlockCount(), is(inode.getUsedBlockCount()));
+            assertThat(view.getDirectoryEntryCount(), is(inode.getDirectoryEntryCount()));
+            for (int i = 0; i < Inode.INODE_BLOCKS; i++) {
+                assertThat(view.getBlockNumber(i), is(inode.getBlockNumber(i)));
+            }
+            visited[0]++;
+        });
+        assertThat(visited[0], is(manager.getAllInodes().size()));
+
+        // And the directory entries of the root
+        Inode root = manager.getInode(1);
+        DirectoryBlock directoryBlock = DirectoryBlock.from(disk, root.getBlockNumber(0));
+        DirectoryEntryView view = new DirectoryEntryView();
+        for (DirectoryEntry entry : directoryBlock.getEntries()) {
+            view.wrap(disk.getBlock(directoryBlock.getBlockNumber()), entry.getIndex());
+            assertThat(view.isAllocated(), is(entry.getStatus() == DirectoryEntryStatus.ALLOCATED));
+            if (view.isAllocated()) {
+                assertThat(view.getInodeNumber(), is(entry.getInodeNumber()));
+                assertThat(view.nameEquals(entry.getName()), is(true));
+                assertThat(view.nameEquals(entry.getName() + "x"), is(false));
+            }
+        }
+    }
+
+    @Test
+    public void paging() throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(CLDSDD_FS_IMAGE);
+        assertThat(src, notNullValue());
+
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+        InodeManager manager = new InodeManager(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk), 2);
+        assertThat(manager.getBlockLoads(), is(0));
+
+        // Only the block holding the inode is read
+        Inode root = manager.getInode(1);
+        assertThat(manager.getBlockLoads(), is(1));
+        assertThat(manager.getInode(2).getNumber(), is(2));
+        assertThat(manager.getBlockLoads(), is(1));
+
+        // A full scan streams through the table
+        long directories = manager.getAllInodes().stream().filter(inode -> inode.getType() == InodeType.DIRECTORY).count();
+        assertThat(directories > 0, is(true));
+        assertThat(manager.getBlockLoads(), is(manager.getAllInodes().size() / Inode.INODES_PER_BLOCK));
+        assertThat(manager.getCachedBlockCount(), is(2));
+
+        // The root inode is still in use, so it keeps its identity after its block is read again
+        assertThat(manager.getInode(1), sameInstance(root));
+    }
+
+    @Test
+    public void changedInodeHeldUntilCommit() throws IOException {
+        InputStream src = getClass().getClassLoader().getResourceAsStream(CLDSDD_FS_IMAGE);
+        assertThat(src, notNullValue());
+
+        DiskInterface disk = new CromixIMDFloppyDisk(IMDImage.fromStream(src, System.out), System.out);
+        SuperBlock superBlock = SuperBlock.from(disk.getSuperBlock());
+        InodeManager manager = new InodeManager(superBlock, disk, FreeBlockList.readFreeBlockList(superBlock, disk), 2);
+
+        // Changed without being marked dirty, then dropped and paged out
+        int fileSize = manager.getInode(2).getFileSize();
+        manager.getInode(2).setFileSize(fileSize + 1);
+        assertThat(manager.getWriteBack().isDirty(), is(true));
+        manager.getAllInodes().forEach(Inode::getType);
+        System.gc();
+
+        manager.commit();
+        InodeManager reread = InodeManager.read(superBlock, disk, manager.getFreeBlockList());
+        assertThat(reread.getInode(2).getFileSize(), is(fileSize + 1));
+    }
+}
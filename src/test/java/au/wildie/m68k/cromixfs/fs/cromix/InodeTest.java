@@ -21,7 +21,9 @@ public class InodeTest {
 
         SuperBlock superBlock = SuperBlock.initialiseLarge(disk.getFormatLabel());
         FreeBlockList freeBlockList = FreeBlockList.create(superBlock, disk);
+        WriteBackCache writeBack = new WriteBackCache(superBlock, disk, dirty -> {});
 
+        int initialFreeBlocks = freeBlockList.getFreeBlockCount();
         Inode inode = new Inode(1);
         assertThat(inode.getUsedBlockCount(), is(0));
         List<Integer> dataBlocks = inode.getDataBlocks(disk);
@@ -29,18 +31,49 @@ public class InodeTest {
 
         for (int i = 0; i < 2000; i++) {
             int blockNumber = freeBlockList.getAvailableBlock();
-            inode.addBlock(blockNumber, disk, freeBlockList);
+            inode.addBlock(blockNumber, writeBack, freeBlockList);
             assertThat(inode.isDirty(), is(true));
             assertThat(inode.getUsedBlockCount(), is(i + 1));
-            dataBlocks = inode.getDataBlocks(disk);
+            dataBlocks = inode.getDataBlocks(new BlockMapWalker(writeBack));
             assertThat(dataBlocks, hasSize(i + 1));
             assertThat(dataBlocks, hasItem(blockNumber));
         }
 
         int blockNumber = freeBlockList.getAvailableBlock();
-        inode.addBlock(blockNumber, disk, freeBlockList);
+        inode.addBlock(blockNumber, writeBack, freeBlockList);
         assertThat(inode.isDirty(), is(true));
+
+        int pointerBlocks = initialFreeBlocks - freeBlockList.getFreeBlockCount() - 2001;
+        assertThat(Inode.getPointerBlockCount(2001), is(pointerBlocks));
+
+        // Pointer blocks reach the disk when they are committed
+        writeBack.commit();
         dataBlocks = inode.getDataBlocks(disk);
+        assertThat(dataBlocks, hasSize(2001));
+        assertThat(dataBlocks, hasItem(blockNumber));
+
+    }
+
+    @Test
+    public void incrementMarksDirty() {
+        DiskInterface disk = CromixIMDFloppyDisk.createLarge(System.out);
+        SuperBlock superBlock = SuperBlock.initialiseLarge(disk.getFormatLabel());
+        superBlock.setDirty(false);
+        WriteBackCache writeBack = new WriteBackCache(superBlock, disk, dirty -> {});
+
+        Inode directory = new Inode(1);
+        directory.track(writeBack);
+        directory.setDirty(false);
+        directory.incrementDirectoryEntryCount();
+        assertThat(directory.isDirty(), is(true));
+        assertThat(writeBack.isDirty(), is(true));
 
+        writeBack.commit();
+        Inode file = new Inode(2);
+        file.track(writeBack);
+        file.setDirty(false);
+        file.incrementUsedBlockCount();
+        assertThat(file.isDirty(), is(true));
+        assertThat(writeBack.isDirty(), is(true));
     }
-}
\ No newline at end of file
+}